@@ -0,0 +1,371 @@
+package org.cb2384.mcimageformatter;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * End-to-end throughput benchmark over a deterministic, synthetic corpus of images.
+ * Each image goes through {@link ImageTransformer#processImage}, {@link CellBlock#export(boolean)},
+ *  and {@link Main#write}, as a real job would, and the run records cells, shapes, and output bytes per second,
+ *  the peak heap, and the bytes allocated.
+ * The results are written as a JSON report, one entry per line, which may be compared against a stored baseline.
+ * <p>
+ * Arguments, all optional, as name=value:
+ * <ul>
+ *     <li>report: where to write the report (default build/reports/macro-benchmark.json)</li>
+ *     <li>baseline: a previous report to compare against</li>
+ *     <li>tolerance: the fraction by which a throughput may fall below the baseline (default 0.10)</li>
+ *     <li>maxSize: the largest side to generate, up to 16384 (default 4096)</li>
+ *     <li>repeats: how many times to run each image, keeping the median time (default 3)</li>
+ * </ul>
+ * Exits with status 1 if any throughput regressed beyond the tolerance.
+ */
+public class MacroBenchmark {
+    
+    private static final int[] SIZES = {16, 64, 256, 1024, 4096, 16384};
+    
+    private static final String[] KINDS = {"flat", "gradient", "noise", "pixelart", "photo"};
+    
+    private static final String[] THROUGHPUTS = {"cellsPerSec", "shapesPerSec", "outputBytesPerSec"};
+    
+    private static final long SEED = 0x5EED_CE11L;
+    
+    private static final Pattern ENTRY = Pattern.compile("\\{\"name\":\"([^\"]+)\"(.*)}");
+    
+    private static final Pattern FIELD = Pattern.compile("\"(\\w+)\":([-0-9.Ee]+)");
+    
+    private MacroBenchmark() {}
+    
+    public static void main(
+            String[] args
+    ) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0 && eq < arg.length() - 1) {
+                options.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        }
+        Path report = Path.of( options.getOrDefault("report", "build/reports/macro-benchmark.json") );
+        String baseline = options.get("baseline");
+        double tolerance = Double.parseDouble( options.getOrDefault("tolerance", "0.10") );
+        int maxSize = Integer.parseInt( options.getOrDefault("maxSize", "4096") );
+        int repeats = Math.max(1, Integer.parseInt( options.getOrDefault("repeats", "3") ));
+        
+        Path scratch = Files.createTempFile("mcif-bench", ".lc3p");
+        List<String> entries = new ArrayList<>();
+        try {
+            // Warm the JIT on the small images first, so that they are not measured cold
+            for (String kind : KINDS) {
+                run(generate(kind, 256), scratch, 1);
+            }
+            
+            for (int size : SIZES) {
+                if (size > maxSize) {
+                    break;
+                }
+                //else
+                for (String kind : KINDS) {
+                    String name = kind + '-' + size + 'x' + size;
+                    String entry = "{\"name\":\"" + name + "\"," + run(generate(kind, size), scratch, repeats) + '}';
+                    System.out.println(entry);
+                    entries.add(entry);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(scratch);
+        }
+        
+        Path parent = report.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.writeString(report, "{\"version\":1,\"entries\":[\n" + String.join(",\n", entries) + "\n]}\n");
+        System.out.println("Report written to " + report);
+        
+        if (baseline != null && !compare(entries, Files.readAllLines(Path.of(baseline)), tolerance)) {
+            System.exit(1);
+        }
+    }
+    
+    /**
+     * Runs one image through the whole conversion, repeats times.
+     * @return the JSON fields of the result, without the braces.
+     */
+    private static String run(
+            BufferedImage image,
+            Path scratch,
+            @Positive int repeats
+    ) throws IOException {
+        String[] args = new String[6];
+        long[] nanos = new long[repeats];
+        long peakHeap = 0;
+        long allocated = 0;
+        int cells = 0;
+        long shapes = 0;
+        long outputBytes = 0;
+        
+        for (int r = 0; r < repeats; r++) {
+            System.gc();
+            resetPeakHeap();
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            
+            CellBlock block = ImageTransformer.processImage(args, image);
+            Iterable<String> exported = block.export(false);
+            try (BufferedWriter bw = Files.newBufferedWriter(scratch)) {
+                Main.write(exported, bw);
+            }
+            
+            nanos[r] = System.nanoTime() - start;
+            allocated += allocatedBytes() - allocatedBefore;
+            peakHeap = Math.max(peakHeap, peakHeap());
+            if (r == 0) {
+                cells = block.seeCells().size();
+                shapes = block.seeCells().stream()
+                        .mapToLong(Cell::printedShapeCount)
+                        .sum();
+                outputBytes = Files.size(scratch);
+            }
+        }
+        
+        Arrays.sort(nanos);
+        double seconds = nanos[repeats / 2] / 1e9;
+        return String.format(Locale.ROOT, "\"cells\":%d,\"shapes\":%d,\"outputBytes\":%d,\"seconds\":%.6f,"
+                        + "\"cellsPerSec\":%.1f,\"shapesPerSec\":%.1f,\"outputBytesPerSec\":%.1f,"
+                        + "\"peakHeapBytes\":%d,\"allocatedBytes\":%d",
+                cells, shapes, outputBytes, seconds,
+                cells / seconds, shapes / seconds, outputBytes / seconds,
+                peakHeap, allocated / repeats);
+    }
+    
+    /**
+     * Compares the entries of this run with those of a baseline report.
+     * @return false if any throughput fell below the baseline by more than the tolerance.
+     */
+    private static boolean compare(
+            List<String> entries,
+            List<String> baselineLines,
+            double tolerance
+    ) {
+        Map<String, Map<String, Double>> baseline = new HashMap<>();
+        for (String line : baselineLines) {
+            Matcher entry = ENTRY.matcher(line);
+            if (entry.find()) {
+                baseline.put( entry.group(1), parseFields(entry.group(2)) );
+            }
+        }
+        
+        boolean ok = true;
+        for (String line : entries) {
+            Matcher entry = ENTRY.matcher(line);
+            if (!entry.find() || !baseline.containsKey(entry.group(1))) {
+                continue;
+            }
+            //else
+            Map<String, Double> current = parseFields(entry.group(2));
+            Map<String, Double> previous = baseline.get(entry.group(1));
+            for (String metric : THROUGHPUTS) {
+                Double before = previous.get(metric);
+                Double after = current.get(metric);
+                if (before == null || after == null || before == 0) {
+                    continue;
+                }
+                //else
+                double ratio = after / before;
+                if (ratio < 1 - tolerance) {
+                    ok = false;
+                    System.out.printf(Locale.ROOT, "REGRESSION %s %s: %.1f -> %.1f (%.1f%%)%n",
+                            entry.group(1), metric, before, after, (ratio - 1) * 100);
+                }
+            }
+        }
+        System.out.println(ok ?
+                "No throughput regressions against the baseline" :
+                "Throughput regressed against the baseline");
+        return ok;
+    }
+    
+    private static Map<String, Double> parseFields(
+            String fields
+    ) {
+        Map<String, Double> res = new HashMap<>();
+        Matcher field = FIELD.matcher(fields);
+        while (field.find()) {
+            res.put( field.group(1), Double.parseDouble(field.group(2)) );
+        }
+        return res;
+    }
+    
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+    
+    /**
+     * Sums the peak of each heap pool; as the pools peak at different times, this is an upper bound.
+     */
+    private static long peakHeap() {
+        long res = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                res += pool.getPeakUsage().getUsed();
+            }
+        }
+        return res;
+    }
+    
+    /**
+     * Sums the bytes allocated so far by every live thread, where the JVM can tell; otherwise 0.
+     * Threads that end during a run take their counts with them, so this is approximate.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean sunThreads)) {
+            return 0;
+        }
+        //else
+        long res = 0;
+        for (long bytes : sunThreads.getThreadAllocatedBytes( threads.getAllThreadIds() )) {
+            if (bytes > 0) {
+                res += bytes;
+            }
+        }
+        return res;
+    }
+    
+    /**
+     * Generates one image of the corpus; the same kind and size always give the same pixels.
+     */
+    private static BufferedImage generate(
+            String kind,
+            @Positive int size
+    ) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        SplittableRandom random = new SplittableRandom(SEED ^ kind.hashCode() ^ size);
+        
+        switch (kind) {
+            case "flat" -> Arrays.fill(pixels, 0xFF_33_66_99);
+            case "gradient" -> {
+                for (int y = 0; y < size; y++) {
+                    for (int x = 0; x < size; x++) {
+                        int r = x * 255 / size;
+                        int g = y * 255 / size;
+                        int b = (x + y) * 127 / size;
+                        pixels[y * size + x] = 0xFF_00_00_00 | (r << 16) | (g << 8) | b;
+                    }
+                }
+            }
+            case "noise" -> {
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] = random.nextInt();
+                }
+            }
+            case "pixelart" -> {
+                int[] palette = new int[8];
+                for (int i = 0; i < palette.length; i++) {
+                    palette[i] = 0xFF_00_00_00 | random.nextInt(0x1_00_00_00);
+                }
+                palette[0] = 0;
+                int block = 4;
+                int blocks = (size + block - 1) / block;
+                int[] grid = new int[blocks * blocks];
+                for (int i = 0; i < grid.length; i++) {
+                    grid[i] = palette[random.nextInt(palette.length)];
+                }
+                for (int y = 0; y < size; y++) {
+                    for (int x = 0; x < size; x++) {
+                        pixels[y * size + x] = grid[(y / block) * blocks + (x / block)];
+                    }
+                }
+            }
+            default -> photo(pixels, size, random);
+        }
+        return image;
+    }
+    
+    /**
+     * Smooth, multi-octave value noise in color, inside a disc whose edge fades through partial alpha.
+     */
+    private static void photo(
+            int[] pixels,
+            @Positive int size,
+            SplittableRandom random
+    ) {
+        int lattice = 17;
+        float[][] channels = new float[3][lattice * lattice];
+        for (float[] channel : channels) {
+            for (int i = 0; i < channel.length; i++) {
+                channel[i] = (float) random.nextDouble();
+            }
+        }
+        
+        double centre = size / 2.0;
+        double radius = size * 0.45;
+        double edge = Math.max(2.0, size / 64.0);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int rgb = 0;
+                for (float[] channel : channels) {
+                    double value = 0;
+                    double weight = 0.5;
+                    for (int octave = 1; octave <= 4; octave <<= 1) {
+                        double u = (double) x * octave / size;
+                        double v = (double) y * octave / size;
+                        value += weight * sample(channel, lattice, u, v);
+                        weight /= 2;
+                    }
+                    // Some per-pixel grain, as from a camera sensor
+                    value += (random.nextDouble() - 0.5) / 32;
+                    rgb = (rgb << 8) | (int) Math.max(0, Math.min(255, value * 270));
+                }
+                
+                double distance = Math.hypot(x + 0.5 - centre, y + 0.5 - centre);
+                double alpha = Math.max(0, Math.min(1, (radius - distance) / edge));
+                pixels[y * size + x] = ((int) (alpha * 255) << 24) | rgb;
+            }
+        }
+    }
+    
+    private static double sample(
+            float[] channel,
+            @Positive int lattice,
+            double u,
+            double v
+    ) {
+        double fx = (u % 1.0) * (lattice - 1);
+        double fy = (v % 1.0) * (lattice - 1);
+        int x0 = (int) fx;
+        int y0 = (int) fy;
+        double tx = fx - x0;
+        double ty = fy - y0;
+        double top = channel[y0 * lattice + x0] * (1 - tx) + channel[y0 * lattice + x0 + 1] * tx;
+        double bottom = channel[(y0 + 1) * lattice + x0] * (1 - tx) + channel[(y0 + 1) * lattice + x0 + 1] * tx;
+        return top * (1 - ty) + bottom * ty;
+    }
+}
@@ -0,0 +1,185 @@
+package org.cb2384.mcimageformatter;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Startup benchmark of short command-line runs of {@link Main}, each in a fresh JVM,
+ *  with and without the fast-start settings: the class-data-sharing archive written by the cdsArchive task,
+ *  and headless AWT.
+ * Each run converts a small image as a default job, like the training run of the archive,
+ *  and records the time from launch to the first byte of output and to the end of the process.
+ * The results are written as a JSON report, one entry per line, as {@link MacroBenchmark} does.
+ * <p>
+ * Arguments, as name=value:
+ * <ul>
+ *     <li>classpath: the classpath to run Main with, which must be the one the archive was written with</li>
+ *     <li>archive: the class-data-sharing archive</li>
+ *     <li>java: the java executable that wrote the archive (default: the one running this benchmark)</li>
+ *     <li>report: where to write the report (default build/reports/startup-benchmark.json)</li>
+ *     <li>repeats: how many runs of each mode, keeping the median (default 10)</li>
+ * </ul>
+ */
+public class StartupBenchmark {
+    
+    private static final int IMAGE_SIZE = 128;
+    
+    private static final long POLL_MILLIS = 1;
+    
+    private StartupBenchmark() {}
+    
+    public static void main(
+            String[] args
+    ) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0 && eq < arg.length() - 1) {
+                options.put(arg.substring(0, eq), arg.substring(eq + 1));
+            }
+        }
+        String classpath = options.get("classpath");
+        String archive = options.get("archive");
+        if (classpath == null || archive == null) {
+            throw new IllegalArgumentException("classpath and archive are required");
+        }
+        //else
+        String java = options.getOrDefault("java",
+                ProcessHandle.current().info().command().orElse("java"));
+        Path report = Path.of( options.getOrDefault("report", "build/reports/startup-benchmark.json") );
+        int repeats = Math.max(1, Integer.parseInt( options.getOrDefault("repeats", "10") ));
+        
+        Path image = Files.createTempFile("mcif-startup", ".png");
+        Path output = Files.createTempFile("mcif-startup", ".lc3p");
+        List<String> entries = new ArrayList<>();
+        try {
+            ImageIO.write(generate(), "png", image.toFile());
+            
+            List<String> main = List.of("-cp", classpath, Main.class.getName(),
+                    image.toString(), output.toString());
+            List<String> standard = new ArrayList<>(List.of(java, "-Xshare:auto"));
+            standard.addAll(main);
+            List<String> fast = new ArrayList<>(List.of(java, "-XX:SharedArchiveFile=" + archive,
+                    "-Djava.awt.headless=true"));
+            fast.addAll(main);
+            
+            // One unmeasured run of each, so that both start with a warm file cache
+            launch(standard, output);
+            launch(fast, output);
+            
+            long[][] standardTimes = measure(standard, output, repeats);
+            long[][] fastTimes = measure(fast, output, repeats);
+            entries.add( entry("standard", standardTimes) );
+            entries.add( entry("fastStart", fastTimes) );
+            entries.forEach(System.out::println);
+            
+            long before = standardTimes[0][repeats / 2];
+            long after = fastTimes[0][repeats / 2];
+            System.out.printf(Locale.ROOT, "Time to first output: %.1f ms -> %.1f ms (%.0f%% faster)%n",
+                    before / 1e6, after / 1e6, 100.0 * (before - after) / before);
+        } finally {
+            Files.deleteIfExists(image);
+            Files.deleteIfExists(output);
+        }
+        
+        Path parent = report.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.writeString(report, "{\"version\":1,\"entries\":[\n" + String.join(",\n", entries) + "\n]}\n");
+        System.out.println("Report written to " + report);
+    }
+    
+    /**
+     * Runs the command repeats times.
+     * @return the sorted times to the first output and to exit, in nanoseconds, in that order.
+     */
+    private static long[][] measure(
+            List<String> command,
+            Path output,
+            @Positive int repeats
+    ) throws IOException, InterruptedException {
+        long[][] res = new long[2][repeats];
+        for (int r = 0; r < repeats; r++) {
+            long[] times = launch(command, output);
+            res[0][r] = times[0];
+            res[1][r] = times[1];
+        }
+        Arrays.sort(res[0]);
+        Arrays.sort(res[1]);
+        return res;
+    }
+    
+    /**
+     * Runs the command once, polling the output file until it is no longer empty.
+     * @return the times to the first output and to exit, in nanoseconds.
+     */
+    private static long@ArrayLen(2)[] launch(
+            List<String> command,
+            Path output
+    ) throws IOException, InterruptedException {
+        Files.write(output, new byte[0]);
+        File out = output.toFile();
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        
+        long firstOutput = -1;
+        // Waits rather than spins, so as not to take a core from the process being measured
+        while (!process.waitFor(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (firstOutput < 0 && out.length() > 0) {
+                firstOutput = System.nanoTime() - start;
+            }
+        }
+        long exit = System.nanoTime() - start;
+        if (process.exitValue() != 0) {
+            throw new IOException("Run failed with status " + process.exitValue() + ": " + command);
+        }
+        //else
+        return new long[]{(firstOutput < 0) ? exit : firstOutput, exit};
+    }
+    
+    private static String entry(
+            String name,
+            long@ArrayLen(2)[][] times
+    ) {
+        int median = times[0].length / 2;
+        return String.format(Locale.ROOT, "{\"name\":\"%s\",\"firstOutputMillis\":%.2f,\"exitMillis\":%.2f,"
+                        + "\"minFirstOutputMillis\":%.2f,\"minExitMillis\":%.2f}",
+                name, times[0][median] / 1e6, times[1][median] / 1e6, times[0][0] / 1e6, times[1][0] / 1e6);
+    }
+    
+    /**
+     * Generates a small test image with a few flat regions and some noise, and a transparent border.
+     */
+    private static BufferedImage generate() {
+        BufferedImage res = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 4; y < IMAGE_SIZE - 4; y++) {
+            for (int x = 4; x < IMAGE_SIZE - 4; x++) {
+                int color = (x < IMAGE_SIZE / 2) ?
+                        0xFF_33_66_99 :
+                        0xFF_00_00_00 | ((x * 31 + y * 17) % 4) * 0x40_40_40;
+                res.setRGB(x, y, color);
+            }
+        }
+        return res;
+    }
+}
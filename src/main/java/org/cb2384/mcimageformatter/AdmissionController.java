@@ -0,0 +1,370 @@
+package org.cb2384.mcimageformatter;
+
+import static org.cb2384.mcimageformatter.Util.CELL_SIZE;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Keeps the jobs of a {@link ConversionEngine} that run at once within a memory budget.
+ * The peak heap footprint of each job is estimated, before it is decoded, from the size of its image,
+ *  which is read from the header of the file alone, and from its resize settings;
+ *  see {@link #estimatePeakBytes(int, int, int, int)}.
+ * A job that fits in what is left of the budget is admitted at once. One that does not waits in a queue,
+ *  first in first out, until enough earlier jobs have finished; a job that could never fit, or that finds
+ *  the queue full, is rejected. How many jobs were admitted and rejected, and how long they waited,
+ *  are available as {@link Stats}.
+ * Estimates are deliberately generous: every image is taken to have 4 bytes per pixel,
+ *  and every copy that a conversion may hold at once is counted.
+ */
+public class AdmissionController {
+    
+    /**
+     * Estimated bytes per Cell while its pixels are held, and after, for its packed shapes.
+     */
+    static final int BYTES_PER_CELL = 2 * CELL_SIZE * CELL_SIZE * Integer.BYTES;
+    
+    /**
+     * Estimated bytes per Cell of the exported lines, which are all held until they are written.
+     */
+    static final int BYTES_PER_LINE = 4096;
+    
+    private final @Positive long budgetBytes;
+    
+    private final @NonNegative int maxQueued;
+    
+    private final Deque<Ticket> queue = new ArrayDeque<>();
+    
+    private long inUseBytes;
+    
+    private long admitted;
+    
+    private long rejected;
+    
+    private long totalWaitNanos;
+    
+    private long maxWaitNanos;
+    
+    /**
+     * A job's claim on the budget, from when it is queued until it is released.
+     */
+    static final class Ticket {
+        
+        private final @NonNegative long bytes;
+        
+        private final long queuedNanos;
+        
+        private boolean admitted;
+        
+        private boolean released;
+        
+        private Ticket(
+                @NonNegative long bytes
+        ) {
+            this.bytes = bytes;
+            queuedNanos = System.nanoTime();
+        }
+    }
+    
+    /**
+     * A snapshot of the state of an AdmissionController.
+     */
+    public static final class Stats {
+        
+        private final long budgetBytes;
+        
+        private final long inUseBytes;
+        
+        private final int queued;
+        
+        private final long admitted;
+        
+        private final long rejected;
+        
+        private final long totalWaitNanos;
+        
+        private final long maxWaitNanos;
+        
+        private Stats(
+                long budgetBytes,
+                long inUseBytes,
+                int queued,
+                long admitted,
+                long rejected,
+                long totalWaitNanos,
+                long maxWaitNanos
+        ) {
+            this.budgetBytes = budgetBytes;
+            this.inUseBytes = inUseBytes;
+            this.queued = queued;
+            this.admitted = admitted;
+            this.rejected = rejected;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+        }
+        
+        public long getBudgetBytes() {
+            return budgetBytes;
+        }
+        
+        /**
+         * Gets the estimated footprint of the jobs admitted and not yet finished.
+         * @return the bytes in use.
+         */
+        public long getInUseBytes() {
+            return inUseBytes;
+        }
+        
+        /**
+         * Gets the number of jobs waiting to be admitted.
+         * @return the length of the queue.
+         */
+        public int getQueued() {
+            return queued;
+        }
+        
+        /**
+         * Gets the number of jobs admitted so far.
+         * @return the number of admitted jobs.
+         */
+        public long getAdmitted() {
+            return admitted;
+        }
+        
+        /**
+         * Gets the number of jobs rejected so far, as too large for the budget or because the queue was full.
+         * @return the number of rejected jobs.
+         */
+        public long getRejected() {
+            return rejected;
+        }
+        
+        /**
+         * Gets the mean time that admitted jobs waited in the queue.
+         * @return the mean wait, in nanoseconds; 0 if no job has been admitted.
+         */
+        public long getMeanWaitNanos() {
+            return (admitted == 0) ?
+                    0 :
+                    totalWaitNanos / admitted;
+        }
+        
+        /**
+         * Gets the longest time that an admitted job waited in the queue.
+         * @return the longest wait, in nanoseconds.
+         */
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "admitted=%d,rejected=%d,queued=%d,inUseBytes=%d,budgetBytes=%d,meanWaitMillis=%.1f,"
+                            + "maxWaitMillis=%.1f",
+                    admitted, rejected, queued, inUseBytes, budgetBytes,
+                    getMeanWaitNanos() / 1e6, maxWaitNanos / 1e6);
+        }
+    }
+    
+    /**
+     * Builds a controller.
+     * @param budgetBytes the total estimated footprint of the jobs that may run at once.
+     * @param maxQueued the number of jobs that may wait for admission before more are rejected.
+     */
+    public AdmissionController(
+            @Positive long budgetBytes,
+            @NonNegative int maxQueued
+    ) {
+        if (budgetBytes < 1 || maxQueued < 0) {
+            throw new IllegalArgumentException("Budget must be positive, and queue length non-negative");
+        }
+        //else
+        this.budgetBytes = budgetBytes;
+        this.maxQueued = maxQueued;
+    }
+    
+    /**
+     * Estimates the peak footprint of the given job, reading only the header of its image.
+     * @param job the job to estimate.
+     * @return the estimated peak footprint, in bytes.
+     * @throws IOException if the image cannot be opened, or its size cannot be read.
+     */
+    public static @NonNegative long estimatePeakBytes(
+            ConversionJob job
+    ) throws IOException {
+        Path input = job.getInput();
+        try (ImageInputStream stream = ImageIO.createImageInputStream( input.toFile() )) {
+            if (stream == null) {
+                throw new IOException("Cannot open " + input);
+            }
+            //else
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                throw new IOException("No reader for " + input);
+            }
+            //else
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(stream, true, true);
+                return estimatePeakBytes( reader.getWidth(0), reader.getHeight(0), job.getWidth(), job.getHeight() );
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+    
+    /**
+     * Estimates the peak footprint of converting an image of the given size.
+     * The peak is the greater of two stages: resizing, which holds the decoded image, the result,
+     *  and an intermediate image as large as the larger of the two; and decomposing, which holds the decoded
+     *  image, the resized image if any, the padded pixels, and for every Cell its pixels and its exported line.
+     * @param width the width of the image.
+     * @param height the height of the image.
+     * @param widthArg the width to resize to, or 0.
+     * @param heightArg the height to resize to, or 0.
+     * @return the estimated peak footprint, in bytes.
+     */
+    static @NonNegative long estimatePeakBytes(
+            @Positive int width,
+            @Positive int height,
+            @NonNegative int widthArg,
+            @NonNegative int heightArg
+    ) {
+        long decoded = (long) width * height * Integer.BYTES;
+        long targetWidth = width;
+        long targetHeight = height;
+        long resizePeak = decoded;
+        long resized = 0;
+        if (widthArg > 0 || heightArg > 0) {
+            // As the modes of ImageTransformer: both sizes are exact, or the other keeps the aspect ratio
+            targetWidth = (widthArg > 0) ?
+                    widthArg :
+                    Math.max(1, Math.round( (double) width * heightArg / height ));
+            targetHeight = (heightArg > 0) ?
+                    heightArg :
+                    Math.max(1, Math.round( (double) height * widthArg / width ));
+            resized = targetWidth * targetHeight * Integer.BYTES;
+            resizePeak = decoded + resized + Math.max(decoded, resized);
+        }
+        
+        long paddedWidth = (targetWidth + CELL_SIZE - 1) / CELL_SIZE * CELL_SIZE;
+        long paddedHeight = (targetHeight + CELL_SIZE - 1) / CELL_SIZE * CELL_SIZE;
+        long padded = paddedWidth * paddedHeight * Integer.BYTES;
+        long cells = (paddedWidth / CELL_SIZE) * (paddedHeight / CELL_SIZE);
+        long decomposePeak = decoded + resized + padded + cells * (BYTES_PER_CELL + BYTES_PER_LINE);
+        
+        return Math.max(resizePeak, decomposePeak);
+    }
+    
+    /**
+     * Queues a job of the given footprint, unless it could never fit, or the queue is full.
+     * Jobs are admitted only in the order they were queued, so they must be given their threads in that order too;
+     *  otherwise a job holding the last thread could wait forever on one that has none.
+     * @param bytes the estimated peak footprint of the job.
+     * @return the ticket of the job, to be passed to {@link #awaitAdmission} and then {@link #release};
+     *         null if the job is rejected.
+     */
+    synchronized @Nullable Ticket enqueue(
+            @NonNegative long bytes
+    ) {
+        if (bytes > budgetBytes || queue.size() >= maxQueued + countAdmissibleNow(bytes)) {
+            rejected++;
+            return null;
+        }
+        //else
+        Ticket res = new Ticket(bytes);
+        queue.addLast(res);
+        return res;
+    }
+    
+    /**
+     * Counts whether a job of the given footprint would be admitted at once, so need not count against the queue.
+     */
+    private @IntRange(from = 0, to = 1) int countAdmissibleNow(
+            @NonNegative long bytes
+    ) {
+        return (queue.isEmpty() && inUseBytes + bytes <= budgetBytes) ?
+                1 :
+                0;
+    }
+    
+    /**
+     * Waits, for at most the given time, for the job of the given ticket to be admitted;
+     *  jobs are admitted in the order in which they were queued.
+     * @param ticket the ticket of the job.
+     * @param millis the longest time to wait.
+     * @return true if the job has been admitted.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    synchronized boolean awaitAdmission(
+            Ticket ticket,
+            @NonNegative long millis
+    ) throws InterruptedException {
+        if (!ticket.admitted && !tryAdmit(ticket)) {
+            wait(millis);
+            tryAdmit(ticket);
+        }
+        return ticket.admitted;
+    }
+    
+    private boolean tryAdmit(
+            Ticket ticket
+    ) {
+        if (queue.peekFirst() != ticket || inUseBytes + ticket.bytes > budgetBytes) {
+            return false;
+        }
+        //else
+        queue.removeFirst();
+        inUseBytes += ticket.bytes;
+        ticket.admitted = true;
+        admitted++;
+        long wait = System.nanoTime() - ticket.queuedNanos;
+        totalWaitNanos += wait;
+        maxWaitNanos = Math.max(maxWaitNanos, wait);
+        // The next in the queue may fit as well
+        notifyAll();
+        return true;
+    }
+    
+    /**
+     * Gives back the budget claimed by the given ticket, or takes it out of the queue if it was not yet admitted.
+     * Releasing a ticket more than once has no further effect.
+     * @param ticket the ticket of the job.
+     */
+    synchronized void release(
+            Ticket ticket
+    ) {
+        if (ticket.released) {
+            return;
+        }
+        //else
+        ticket.released = true;
+        if (ticket.admitted) {
+            inUseBytes -= ticket.bytes;
+        } else {
+            queue.remove(ticket);
+        }
+        notifyAll();
+    }
+    
+    /**
+     * Takes a snapshot of the state of this controller.
+     * @return the current statistics.
+     */
+    public synchronized Stats stats() {
+        return new Stats(budgetBytes, inUseBytes, queue.size(), admitted, rejected, totalWaitNanos, maxWaitNanos);
+    }
+}
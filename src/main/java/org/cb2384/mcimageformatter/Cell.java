@@ -6,12 +6,15 @@ import static org.cb2384.mcimageformatter.Util.CELL_SIZE_MINUS_ONE;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Objects;
 import java.util.NavigableSet;
 
+import javax.imageio.ImageIO;
+
 import org.checkerframework.checker.index.qual.*;
 import org.checkerframework.checker.nullness.qual.*;
 import org.checkerframework.common.value.qual.*;
@@ -19,7 +22,8 @@ import org.checkerframework.common.value.qual.*;
 /**
  * A 16x16 pixel slice of an image.
  * Each Cell contains its image slice as well as a {@link NavigableSet} of the {@link Shape}s that make it up.
- * The set of Shapes is created as part of the creation of the Cell object.
+ * The Shapes are made when first needed, as by {@link #seeShapes()} or {@link #export(boolean)},
+ *  and are then held packed, one long each; the image slice is released once they are made.
  * Each Cell also contains a {@link Point} that indicates which 'tile' of the larger image it is.
  * A Cell is {@link Util#CELL_SIZE} pixels square.
  */
@@ -30,22 +34,63 @@ public class Cell
     
     private static final int CELL_BLOCK_SIZE_MINUS_ONE = CELL_BLOCK_SIZE - 1;
     
-    private static final BufferedImage EMPTY_PLACEHOLDER_EXPORT;
+    private static final String EMPTY_PLACEHOLDER_RESOURCE = "/resources/emptyCell.png";
     
-    static {
-        BufferedImage tempImg = null;
-        try {
-            String path = Main.class.getResource("/resources/emptyCell.png").getPath();
-            tempImg = ImageTransformer.loadImage(path);
-        } catch (NullPointerException | IOException ignored) {}
-        EMPTY_PLACEHOLDER_EXPORT = tempImg;
+    /**
+     * The placeholder for empty cells and its exported shape list, decomposed and encoded once per process,
+     *  and only once a placeholder is first needed.
+     * The image is read as a stream from the classpath, so that it is also found inside a jar.
+     */
+    private static final class Placeholder {
+        
+        private static final @Nullable Cell CELL = load();
+        
+        private static final @Nullable String SHAPE_LIST = (CELL == null) ?
+                null :
+                CELL.exportShapeList();
+        
+        private static @Nullable Cell load() {
+            try (InputStream in = Cell.class.getResourceAsStream(EMPTY_PLACEHOLDER_RESOURCE)) {
+                BufferedImage image = (in == null) ?
+                        null :
+                        ImageIO.read(in);
+                return (image == null || image.getWidth() != CELL_SIZE || image.getHeight() != CELL_SIZE) ?
+                        null :
+                        new Cell(new Point(), image);
+            } catch (IOException ignored) {
+                return null;
+            }
+        }
     }
     
-    private final BufferedImage image;
+    /**
+     * The image of this Cell, if it was built from one and has not been decomposed yet.
+     */
+    private @Nullable BufferedImage image;
+    
+    /**
+     * The pixels of this Cell, if it was built from them rather than from an image and has not been decomposed yet;
+     *  kept as an array so that building Cells from a {@link PixelSource} does not initialize AWT.
+     */
+    private int @Nullable [] sRGBColorArray;
+    
+    /**
+     * How to decompose this Cell, until it has been decomposed.
+     */
+    private @Nullable DecompositionOptions options;
     
     private final Point coordinates;
     
-    private final NavigableSet<Shape> shapeSet;
+    /**
+     * The shapes of this Cell, in order, each packed into a long by {@link #pack}; null until it is decomposed.
+     * Written last when decomposing, so that the other results of decomposition are visible to any thread
+     *  that sees this.
+     */
+    private volatile long @Nullable [] packedShapes;
+    
+    private @NonNegative float maxColorError;
+    
+    private @NonNegative int unsimplifiedShapeCount;
     
     public Cell(
             BufferedImage image,
@@ -56,53 +101,452 @@ public class Cell
         }
         //else
         this.image = image;
+        sRGBColorArray = null;
+        options = DecompositionOptions.EXACT;
         this.coordinates = coordinates;
-        
-        shapeSet = setBuilder(image);
     }
     
     Cell(
             Point coordinates,
             BufferedImage image
+    ) {
+        this(coordinates, image, DecompositionOptions.EXACT);
+    }
+    
+    /**
+     * Builds a Cell from its image, to be decomposed with the given options when its shapes are first needed.
+     * @param coordinates the coordinates of this Cell.
+     * @param image the image of this Cell; must be 16x16, and must not change until this Cell is decomposed.
+     * @param options how to decompose the image into shapes.
+     */
+    Cell(
+            Point coordinates,
+            BufferedImage image,
+            DecompositionOptions options
     ) {
         assert (image.getHeight() == CELL_SIZE && image.getWidth() == CELL_SIZE) : "Cell must be 16x16";
         
         this.image = image;
+        sRGBColorArray = null;
+        this.options = options;
         this.coordinates = coordinates;
+    }
+    
+    /**
+     * Builds a Cell from its pixels, rather than from an image.
+     * @param coordinates the coordinates of this Cell.
+     * @param sRGBColorArray the pixels of this Cell in {@link BufferedImage#TYPE_INT_ARGB} format,
+     *                       row by row from the top; retained until this Cell is decomposed,
+     *                       so must not be changed afterwards.
+     */
+    Cell(
+            Point coordinates,
+            int@ArrayLen(CELL_SIZE * CELL_SIZE)[] sRGBColorArray
+    ) {
+        this(coordinates, sRGBColorArray, DecompositionOptions.EXACT);
+    }
+    
+    /**
+     * Builds a Cell from its pixels, to be decomposed with the given options when its shapes are first needed.
+     * @param coordinates the coordinates of this Cell.
+     * @param sRGBColorArray the pixels of this Cell in {@link BufferedImage#TYPE_INT_ARGB} format,
+     *                       row by row from the top; retained until this Cell is decomposed,
+     *                       so must not be changed afterwards.
+     * @param options how to decompose the pixels into shapes.
+     */
+    Cell(
+            Point coordinates,
+            int@ArrayLen(CELL_SIZE * CELL_SIZE)[] sRGBColorArray,
+            DecompositionOptions options
+    ) {
+        assert (sRGBColorArray.length == CELL_SIZE * CELL_SIZE) : "Cell must be 16x16";
         
-        shapeSet = setBuilder(image);
+        image = null;
+        this.sRGBColorArray = sRGBColorArray;
+        this.options = options;
+        this.coordinates = coordinates;
     }
     
-    private static NavigableSet<Shape> setBuilder(
-            BufferedImage image
+    /**
+     * Decomposes this Cell now, if it has not been already, so that a container can do so on its own threads.
+     * @return this Cell.
+     */
+    Cell prepareShapes() {
+        packedShapes();
+        return this;
+    }
+    
+    /**
+     * Gets the packed shapes of this Cell, decomposing it first if need be;
+     *  once decomposed, the image or pixels it was built from are released.
+     */
+    private long[] packedShapes() {
+        long[] res = packedShapes;
+        if (res != null) {
+            return res;
+        }
+        //else
+        synchronized (this) {
+            res = packedShapes;
+            if (res == null) {
+                assert options != null;
+                int[] masked = (image != null) ?
+                        image.getRGB(0, 0, CELL_SIZE, CELL_SIZE, null, 0, CELL_SIZE) :
+                        sRGBColorArray.clone();
+                for (int i = 0; i < masked.length; i++) {
+                    masked[i] = Util.maskAlpha(masked[i]);
+                }
+                Decomposition decomposition = decompose(masked, options);
+                maxColorError = decomposition.maxError;
+                unsimplifiedShapeCount = decomposition.unsimplifiedShapeCount;
+                
+                res = new long[decomposition.shapeSet.size()];
+                int i = 0;
+                for (Shape shape : decomposition.shapeSet) {
+                    res[i++] = pack(shape);
+                }
+                image = null;
+                sRGBColorArray = null;
+                options = null;
+                packedShapes = res;
+            }
+        }
+        return res;
+    }
+    
+    /**
+     * Packs a shape into a long: its color in the low 32 bits, then 4 bits of xMin, 5 of xMax, 4 of yMin, 5 of yMax.
+     */
+    private static long pack(
+            Shape shape
     ) {
-        int[] sRGBColorArray = image.getRGB(0, 0, CELL_SIZE, CELL_SIZE, null, 0, CELL_SIZE);
+        return (shape.getColor() & 0xFF_FF_FF_FFL)
+                | ((long) shape.getXMin() << 32)
+                | ((long) shape.getXMax() << 36)
+                | ((long) shape.getYMin() << 41)
+                | ((long) shape.getYMax() << 46);
+    }
+    
+    private static Shape unpack(
+            long packed
+    ) {
+        return new Shape( (int) (packed >>> 32) & 0xF, (int) (packed >>> 36) & 0x1F,
+                (int) (packed >>> 41) & 0xF, (int) (packed >>> 46) & 0x1F, (int) packed );
+    }
+    
+    /**
+     * Decomposes the tile exactly, as {@link #decompose(int[])}, or within a color tolerance,
+     *  as {@link TolerantDecomposer}, as the options require;
+     *  then, if it has more printed shapes than the shape budget, simplifies it with {@link ShapeSimplifier}.
+     */
+    private static Decomposition decompose(
+            int@ArrayLen(CELL_BLOCK_SIZE)[] sRGBColorArray,
+            DecompositionOptions options
+    ) {
+        Decomposition decomposition = options.isExact() ?
+                new Decomposition(decompose(sRGBColorArray), 0) :
+                TolerantDecomposer.decompose(sRGBColorArray, options);
         
-        for (int i = 0; i < sRGBColorArray.length; i++) {
-            sRGBColorArray[i] = Util.maskAlpha(sRGBColorArray[i]);
+        int budget = options.getShapeBudget();
+        return (budget > 0 && decomposition.unsimplifiedShapeCount > budget) ?
+                ShapeSimplifier.simplify(sRGBColorArray, decomposition, budget) :
+                decomposition;
+    }
+    
+    /**
+     * Classifies the tile in a single scan, as empty or solid (one color), two-color, or otherwise,
+     *  and decomposes it accordingly.
+     * One-color tiles are a single shape, two-color tiles are decomposed with row bitmasks,
+     *  and any other tile goes through {@link #horizontalProcess} and {@link #verticalProcess}.
+     * Every path gives the same shapes.
+     * @param sRGBColorArray the pixels of the tile, row by row from the top, with alpha already masked.
+     * @return the shapes that make up the tile.
+     */
+    private static NavigableSet<Shape> decompose(
+            int@ArrayLen(CELL_BLOCK_SIZE)[] sRGBColorArray
+    ) {
+        int firstColor = sRGBColorArray[0];
+        int secondColor = firstColor;
+        for (int color : sRGBColorArray) {
+            if (color != firstColor && color != secondColor) {
+                if (secondColor != firstColor) {
+                    Deque<Shape> shapeList = horizontalProcess(sRGBColorArray);
+                    return verticalProcess(shapeList);
+                }
+                //else
+                secondColor = color;
+            }
         }
         
-        Deque<Shape> shapeList = horizontalProcess(sRGBColorArray);
-        return verticalProcess(shapeList);
+        if (secondColor == firstColor) {
+            NavigableSet<Shape> shapeSet = Util.createNavigableSet();
+            shapeSet.add( new Shape(0, CELL_SIZE, 0, CELL_SIZE, firstColor) );
+            return shapeSet;
+        }
+        //else
+        return twoColorProcess(sRGBColorArray, firstColor, secondColor);
     }
     
-    public BufferedImage seeImage() {
-        return Util.cloneImage(image);
+    /**
+     * Decomposes a tile of exactly two colors, giving the same shapes as
+     *  {@link #horizontalProcess} followed by {@link #verticalProcess}.
+     * Each row is reduced to a bitmask of the pixels of one color, from which the starts of its runs are
+     *  found with bit operations; a run is then merged into the one below it if that has the same bounds.
+     */
+    private static NavigableSet<Shape> twoColorProcess(
+            int@ArrayLen(CELL_BLOCK_SIZE)[] sRGBColorArray,
+            int otherColor,
+            int maskedColor
+    ) {
+        // Open runs of the previous row, indexed by their xMin: their xMax (0 if none), color, and yMin of the stack
+        int[] prevXMax = new int[CELL_SIZE];
+        int[] prevColor = new int[CELL_SIZE];
+        int[] prevYMin = new int[CELL_SIZE];
+        int[] currXMax = new int[CELL_SIZE];
+        int[] currColor = new int[CELL_SIZE];
+        int[] currYMin = new int[CELL_SIZE];
+        
+        NavigableSet<Shape> shapeSet = Util.createNavigableSet();
+        // Shapes count y from the bottom, so the bottom row of the image comes first
+        for (int y = 0; y < CELL_SIZE; y++) {
+            int row = CELL_SIZE_MINUS_ONE - y;
+            int mask = 0;
+            for (int x = 0; x < CELL_SIZE; x++) {
+                if (sRGBColorArray[buildIndex(x, row)] == maskedColor) {
+                    mask |= 1 << x;
+                }
+            }
+            
+            // A run starts at 0, and wherever a pixel differs from the one to its left
+            int starts = ((mask ^ (mask << 1)) | 1) & 0xFF_FF;
+            while (starts != 0) {
+                int xMin = Integer.numberOfTrailingZeros(starts);
+                starts &= starts - 1;
+                int xMax = (starts == 0) ?
+                        CELL_SIZE :
+                        Integer.numberOfTrailingZeros(starts);
+                int color = (((mask >>> xMin) & 1) != 0) ?
+                        maskedColor :
+                        otherColor;
+                
+                currXMax[xMin] = xMax;
+                currColor[xMin] = color;
+                if (prevXMax[xMin] == xMax && prevColor[xMin] == color) {
+                    currYMin[xMin] = prevYMin[xMin];
+                    prevXMax[xMin] = 0;
+                } else {
+                    currYMin[xMin] = y;
+                }
+            }
+            
+            closeRuns(shapeSet, prevXMax, prevColor, prevYMin, y);
+            
+            int[] temp = prevXMax;
+            prevXMax = currXMax;
+            currXMax = temp;
+            temp = prevColor;
+            prevColor = currColor;
+            currColor = temp;
+            temp = prevYMin;
+            prevYMin = currYMin;
+            currYMin = temp;
+        }
+        closeRuns(shapeSet, prevXMax, prevColor, prevYMin, CELL_SIZE);
+        
+        return shapeSet;
+    }
+    
+    /**
+     * Adds a shape for each run that is still open, and clears them.
+     */
+    private static void closeRuns(
+            NavigableSet<Shape> shapeSet,
+            int@ArrayLen(CELL_SIZE)[] xMaxes,
+            int@ArrayLen(CELL_SIZE)[] colors,
+            int@ArrayLen(CELL_SIZE)[] yMins,
+            @IntRange(from = 1, to = CELL_SIZE) int yMax
+    ) {
+        for (int xMin = 0; xMin < CELL_SIZE; xMin++) {
+            int xMax = xMaxes[xMin];
+            if (xMax != 0) {
+                shapeSet.add( new Shape(xMin, xMax, yMins[xMin], yMax, colors[xMin]) );
+                xMaxes[xMin] = 0;
+            }
+        }
+    }
+    
+    /**
+     * See a copy of the image of this Cell.
+     * Once this Cell has been decomposed, its pixels are no longer held, and the image is drawn from its shapes,
+     *  so has its alpha masked, as {@link Util#maskAlpha}, and any merging of colors applied.
+     * @return a copy of the image of this Cell.
+     */
+    public synchronized BufferedImage seeImage() {
+        if (image != null) {
+            return Util.cloneImage(image);
+        }
+        //else
+        BufferedImage res = new BufferedImage(CELL_SIZE, CELL_SIZE, BufferedImage.TYPE_INT_ARGB);
+        if (sRGBColorArray != null) {
+            res.setRGB(0, 0, CELL_SIZE, CELL_SIZE, sRGBColorArray, 0, CELL_SIZE);
+            return res;
+        }
+        //else
+        int[] pixels = new int[CELL_SIZE * CELL_SIZE];
+        for (long packed : packedShapes()) {
+            Shape shape = unpack(packed);
+            for (int y = shape.getYMin(); y < shape.getYMax(); y++) {
+                // Shapes count y from the bottom
+                int from = buildIndex(shape.getXMin(), CELL_SIZE_MINUS_ONE - y);
+                Arrays.fill(pixels, from, from + shape.getXMax() - shape.getXMin(), shape.getColor());
+            }
+        }
+        res.setRGB(0, 0, CELL_SIZE, CELL_SIZE, pixels, 0, CELL_SIZE);
+        return res;
     }
     
     public Point seeCoordinates() {
         return (Point) coordinates.clone();
     }
     
-    public int getRGB(
+    /**
+     * Gets the x-coordinate of this Cell within its {@link CellBlock}, counted from 1 at the left.
+     * @return the x-coordinate of this Cell.
+     */
+    @Positive
+    int getX() {
+        return coordinates.x;
+    }
+    
+    /**
+     * Gets the y-coordinate of this Cell within its {@link CellBlock}, counted from 1 at the bottom.
+     * @return the y-coordinate of this Cell.
+     */
+    @Positive
+    int getY() {
+        return coordinates.y;
+    }
+    
+    /**
+     * Counts the shapes of this Cell that will be printed, that is, that are not transparent.
+     * @return the number of printed shapes.
+     */
+    @IntRange(from = 0, to = CELL_SIZE * CELL_SIZE)
+    int printedShapeCount() {
+        int res = 0;
+        for (long packed : packedShapes()) {
+            if ((int) packed != 0) {
+                res++;
+            }
+        }
+        return res;
+    }
+    
+    /**
+     * Gets the distinct tints of the printed shapes of this Cell.
+     * @return the distinct tints, as {@link Shape#getColor()}, in ascending order.
+     */
+    int[] printedTints() {
+        return Arrays.stream( packedShapes() )
+                .mapToInt(p -> (int) p)
+                .filter(c -> c != 0)
+                .distinct()
+                .sorted()
+                .toArray();
+    }
+    
+    /**
+     * Gets the tint that covers the most pixels of this Cell; ties go to the lowest tint.
+     * @return the dominant tint, as {@link Shape#getColor()}, or 0 if this Cell is empty.
+     */
+    int dominantTint() {
+        int[] tints = printedTints();
+        int[] areas = new int[tints.length];
+        for (long packed : packedShapes()) {
+            Shape shape = unpack(packed);
+            int color = shape.getColor();
+            if (color != 0) {
+                int area = (shape.getXMax() - shape.getXMin()) * (shape.getYMax() - shape.getYMin());
+                areas[Arrays.binarySearch(tints, color)] += area;
+            }
+        }
+        
+        int res = 0;
+        int maxArea = 0;
+        for (int i = 0; i < tints.length; i++) {
+            if (areas[i] > maxArea) {
+                maxArea = areas[i];
+                res = tints[i];
+            }
+        }
+        return res;
+    }
+    
+    /**
+     * Gets the greatest color error of this Cell: the greatest CIE76 &Delta;E between the color of any pixel
+     *  and the color of the shape that covers it. Always 0 when only equal colors are merged.
+     * @return the greatest color error of any pixel.
+     * @see DecompositionOptions#withColorTolerance
+     */
+    public @NonNegative float getMaxColorError() {
+        packedShapes();
+        return maxColorError;
+    }
+    
+    /**
+     * Counts the shapes of this Cell that would be printed had it not been simplified to fit a shape budget.
+     * @return the number of printed shapes before simplification;
+     *         the same as {@link #printedShapeCount()} if this Cell was not simplified.
+     * @see DecompositionOptions#withShapeBudget
+     */
+    @IntRange(from = 0, to = CELL_SIZE * CELL_SIZE)
+    int unsimplifiedShapeCount() {
+        packedShapes();
+        return unsimplifiedShapeCount;
+    }
+    
+    /**
+     * Gets the color of one pixel of this Cell; once this Cell has been decomposed,
+     *  that is the color of the shape covering it, as with {@link #seeImage()}.
+     * @param x the x-coordinate of the pixel, from the left.
+     * @param y the y-coordinate of the pixel, from the top.
+     * @return the color of the pixel in {@link BufferedImage#TYPE_INT_ARGB} format.
+     */
+    public synchronized int getRGB(
             @IntRange(from = 0, to = CELL_SIZE_MINUS_ONE) int x,
             @IntRange(from = 0, to = CELL_SIZE_MINUS_ONE) int y
     ) {
-        return image.getRGB(x, y);
+        if (image != null) {
+            return image.getRGB(x, y);
+        }
+        //else
+        if (sRGBColorArray != null) {
+            return sRGBColorArray[buildIndex(x, y)];
+        }
+        //else
+        // Shapes count y from the bottom
+        int shapeY = CELL_SIZE_MINUS_ONE - y;
+        for (long packed : packedShapes()) {
+            Shape shape = unpack(packed);
+            if (x >= shape.getXMin() && x < shape.getXMax()
+                    && shapeY >= shape.getYMin() && shapeY < shape.getYMax()) {
+                return shape.getColor();
+            }
+        }
+        return 0;
     }
     
+    /**
+     * See the shapes of this Cell, decomposing it first if it has not been already.
+     * The shapes are held packed, so each call builds a new set.
+     * @return a new set of the shapes of this Cell.
+     */
     public NavigableSet<Shape> seeShapes() {
-        return Util.copyAsNavSet(shapeSet);
+        NavigableSet<Shape> res = Util.createNavigableSet();
+        for (long packed : packedShapes()) {
+            res.add( unpack(packed) );
+        }
+        return res;
     }
     
     public int order2D(
@@ -114,7 +558,8 @@ public class Cell
     /**
      *
      * @param usePlaceholderForNull determines whether to return null or a placeholder image if the cell is empty
-     * @return the export String
+     * @return the export String, or null if the cell is empty and either no placeholder is wanted
+     *         or the placeholder image could not be loaded
      * @see Shape#export()
      */
     @Nullable
@@ -122,34 +567,63 @@ public class Cell
             boolean usePlaceholderForNull
     ) {
         //Util.lightLevelVerify(lightLevel);
-        String closeBrace = "}";
-        
-        List<String> exportedShapeList = shapeSet.stream()
-                .map(Shape::export)
-                .filter(Objects::nonNull)
-                .toList();
+        String shapeList = exportShapeList();
         
-        if (exportedShapeList.isEmpty()) {
-            return usePlaceholderForNull ?
-                    new Cell(coordinates, EMPTY_PLACEHOLDER_EXPORT).export(false) :
+        if (shapeList == null) {
+            shapeList = usePlaceholderForNull ?
+                    Placeholder.SHAPE_LIST :
                     null;
+            if (shapeList == null) {
+                return null;
+            }
         }
         //else
         
-        StringBuilder resBuilder = new StringBuilder("{tooltip=")
-                .append(coordString())
-                //.append(",lightLevel=")
-                //.append(lightLevel)
-                .append(",listShape={");
-        
-        for (String exportString : exportedShapeList) {
-            resBuilder.append(exportString).append(',');
+        return "{tooltip=" + coordString()
+                //+ ",lightLevel=" + lightLevel
+                + ",listShape={" + shapeList + "}}";
+    }
+    
+    /**
+     * Exports the shapes of this Cell, separated by commas.
+     * @return the exported shapes, or null if no shape is exported.
+     * @see Shape#export()
+     */
+    private @Nullable String exportShapeList() {
+        StringBuilder resBuilder = new StringBuilder();
+        for (long packed : packedShapes()) {
+            String exportString = unpack(packed).export();
+            if (exportString != null) {
+                if (!resBuilder.isEmpty()) {
+                    resBuilder.append(',');
+                }
+                resBuilder.append(exportString);
+            }
         }
         
-        int currLen = resBuilder.length();
-        resBuilder.replace(currLen - 1, currLen, closeBrace);
-        
-        return resBuilder + closeBrace;
+        return resBuilder.isEmpty() ?
+                null :
+                resBuilder.toString();
+    }
+    
+    /**
+     * Gets the shapes that {@link #export(boolean)} would write for this Cell: those that are not fully transparent,
+     *  or those of the placeholder if there are none and a placeholder is wanted.
+     * @param usePlaceholderForNull determines whether to use the placeholder if the cell is empty
+     * @return the exported shapes, in order, or an empty list if the cell is not exported.
+     */
+    List<Shape> exportedShapes(
+            boolean usePlaceholderForNull
+    ) {
+        List<Shape> res = Arrays.stream( packedShapes() )
+                .filter(p -> (int) p != 0)
+                .mapToObj(Cell::unpack)
+                .toList();
+        if (res.isEmpty() && usePlaceholderForNull && Placeholder.CELL != null) {
+            return Placeholder.CELL.exportedShapes(false);
+        }
+        //else
+        return res;
     }
     
     private String coordString() {
@@ -1,36 +1,52 @@
 package org.cb2384.mcimageformatter;
 
 import static org.cb2384.mcimageformatter.Util.CELL_SIZE;
+import static org.cb2384.mcimageformatter.Util.CELL_SIZE_MINUS_ONE;
 
 import java.awt.Point;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
 import java.util.NavigableSet;
 import java.util.Objects;
+import java.util.stream.IntStream;
 
 import org.checkerframework.checker.index.qual.*;
 import org.checkerframework.checker.nullness.qual.*;
 import org.checkerframework.common.value.qual.*;
 
 /**
- * An {@link BufferedImage}, and a {@link NavigableSet} of {@link Cell}s from which the image is composed.
+ * The pixels of an image, and a {@link NavigableSet} of {@link Cell}s from which the image is composed.
  * Each cell is a square that is (currently, and likely to stay)
  *  {@link Util#CELL_SIZE} == 16 pixels per side.
  * When a CellBlock is constructed, the Cells are automatically created.
+ * An image is held as {@link PaddedPixels}, padded and with its alpha threshold applied in one pass;
+ *  a CellBlock may also be built from any other {@link PixelSource}, such as an {@link OffHeapPixelSource}.
+ * Either way, the Cells are built from slices of the pixels.
  */
 public class CellBlock {
     
-    private final BufferedImage image;
+    private final PixelSource source;
     
     private final NavigableSet<Cell> cellSet;
     
-    CellBlock(
-            BufferedImage image
+    private CellBlock(
+            PixelSource source,
+            DecompositionOptions options
     ) {
-        assert (image.getWidth() % CELL_SIZE == 0 && image.getHeight() % CELL_SIZE == 0) :
-                "image is not a multiple of 16x16";
-        
-        this.image = Util.correctAlpha(image);
-        cellSet = setBuilder(image);
+        this.source = source;
+        cellSet = setBuilder(source, options);
+    }
+    
+    private CellBlock(
+            PixelSource source,
+            NavigableSet<Cell> cellSet
+    ) {
+        this.source = source;
+        this.cellSet = cellSet;
     }
     
     /**
@@ -42,37 +58,144 @@ public class CellBlock {
     public static CellBlock build(
             BufferedImage image
     ) {
-        return new CellBlock( ImageTransformer.padImageIfNeeded(image) );
+        return build(image, DecompositionOptions.EXACT);
+    }
+    
+    /**
+     * As {@link #build(BufferedImage)}, but decomposing each {@link Cell} with the given options.
+     * @param image the image for this CellBlock.
+     * @param options how to decompose each Cell into shapes.
+     * @return a CellBlock for this image.
+     */
+    public static CellBlock build(
+            BufferedImage image,
+            DecompositionOptions options
+    ) {
+        return new CellBlock( PaddedPixels.of(image), options );
+    }
+    
+    /**
+     * Makes the CellBlock that holds the given pixels and the given, already built, {@link Cell}s of them,
+     *  such as Cells shared with the CellBlock of another image that is the same in those places.
+     * @param pixels the pixels for this CellBlock.
+     * @param cells the Cells of the pixels, one for each 16x16 tile.
+     * @return a CellBlock for these pixels.
+     */
+    static CellBlock fromCells(
+            PaddedPixels pixels,
+            Collection<Cell> cells
+    ) {
+        assert (cells.size() == (pixels.getWidth() / CELL_SIZE) * (pixels.getHeight() / CELL_SIZE)) :
+                "cells do not cover the image";
+        
+        return new CellBlock( pixels, Util.copyAsNavSet(cells) );
+    }
+    
+    /**
+     * Makes the {@link Cell}s of the given source, reading one Cell at a time, and the CellBlock that holds them.
+     * The source is padded as {@link PaddedPixels#of} pads an image,
+     *  but without copying it. The rows of Cells are built in parallel.
+     * @param source the pixels for this CellBlock; must not change while this CellBlock is in use.
+     * @return a CellBlock for this source.
+     */
+    public static CellBlock build(
+            PixelSource source
+    ) {
+        return build(source, DecompositionOptions.EXACT);
+    }
+    
+    /**
+     * As {@link #build(PixelSource)}, but decomposing each {@link Cell} with the given options.
+     * @param source the pixels for this CellBlock; must not change while this CellBlock is in use.
+     * @param options how to decompose each Cell into shapes.
+     * @return a CellBlock for this source.
+     */
+    public static CellBlock build(
+            PixelSource source,
+            DecompositionOptions options
+    ) {
+        return new CellBlock(source, options);
     }
     
     private static NavigableSet<Cell> setBuilder(
-            BufferedImage image
+            PixelSource source,
+            DecompositionOptions options
     ) {
-        int cellsHeight = image.getHeight() / CELL_SIZE;
-        int cellsWidth = image.getWidth() / CELL_SIZE;
+        int cellsHeight = (source.getHeight() + CELL_SIZE_MINUS_ONE) / CELL_SIZE;
+        int cellsWidth = (source.getWidth() + CELL_SIZE_MINUS_ONE) / CELL_SIZE;
         
-        NavigableSet<Cell> cellSet = Util.createNavigableSet();
-        for (int y = cellsHeight - 1; y >= 0; y--) {
-            int yCoord = cellsHeight - y;
-            
-            for (int x = 0; x < cellsWidth;) {
-                BufferedImage subimage = image.getSubimage(x * CELL_SIZE, y * CELL_SIZE, CELL_SIZE, CELL_SIZE);
-                // Points are defined from 1, not 0.
-                // x will need to be incremented anyway, so do that here
-                
-                Point point = new Point(++x, yCoord);
-                cellSet.add( new Cell(point, subimage) );
-            }
+        List<Cell> cells = IntStream.range(0, cellsHeight)
+                .parallel()
+                .boxed()
+                .flatMap(y -> IntStream.range(0, cellsWidth).mapToObj(x -> {
+                    int[] pixels = new int[CELL_SIZE * CELL_SIZE];
+                    readPaddedCell(source, x, y, pixels);
+                    // Points are defined from 1, not 0. Decomposed here, so that the pixels are released at once
+                    return new Cell( new Point(x + 1, cellsHeight - y), pixels, options ).prepareShapes();
+                }))
+                .toList();
+        
+        return Util.copyAsNavSet(cells);
+    }
+    
+    /**
+     * Reads the pixels of one cell of the padded source into the given array; padding is transparent.
+     * Padding is placed as in {@link PaddedPixels#of}: split evenly between the sides,
+     *  with any odd pixel on the right and on the top.
+     */
+    private static void readPaddedCell(
+            PixelSource source,
+            @NonNegative int cellX,
+            @NonNegative int cellY,
+            int@ArrayLen(CELL_SIZE * CELL_SIZE)[] pixels
+    ) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int widthUnder = Math.floorMod(-width, CELL_SIZE);
+        int heightUnder = Math.floorMod(-height, CELL_SIZE);
+        int left = widthUnder / 2;
+        int top = heightUnder - (heightUnder / 2);
+        
+        int xMin = cellX * CELL_SIZE - left;
+        int yMin = cellY * CELL_SIZE - top;
+        int xFrom = Math.max(xMin, 0);
+        int yFrom = Math.max(yMin, 0);
+        int xTo = Math.min(xMin + CELL_SIZE, width);
+        int yTo = Math.min(yMin + CELL_SIZE, height);
+        
+        if (xFrom < xTo && yFrom < yTo) {
+            int offset = (yFrom - yMin) * CELL_SIZE + (xFrom - xMin);
+            source.getRGB(xFrom, yFrom, xTo - xFrom, yTo - yFrom, pixels, offset, CELL_SIZE);
         }
-        return cellSet;
     }
     
     /**
-     * See a copy (changes to the copy are not reflected in this object) of the contained image.
-     * @return a copy of the contained BufferedImage.
+     * See a copy (changes to the copy are not reflected in this object) of the contained image, padded,
+     *  and with its alpha threshold applied.
+     * @return a copy of the contained image, as a BufferedImage.
      */
     public BufferedImage seeImage() {
-        return Util.cloneImage(image);
+        int cellsHeight = (source.getHeight() + CELL_SIZE_MINUS_ONE) / CELL_SIZE;
+        int cellsWidth = (source.getWidth() + CELL_SIZE_MINUS_ONE) / CELL_SIZE;
+        if ((long) cellsHeight * cellsWidth * CELL_SIZE * CELL_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Image is too large for a BufferedImage");
+        }
+        //else
+        
+        BufferedImage res = new BufferedImage(cellsWidth * CELL_SIZE, cellsHeight * CELL_SIZE,
+                BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = new int[CELL_SIZE * CELL_SIZE];
+        for (int y = 0; y < cellsHeight; y++) {
+            for (int x = 0; x < cellsWidth; x++) {
+                Arrays.fill(pixels, 0);
+                readPaddedCell(source, x, y, pixels);
+                for (int i = 0; i < pixels.length; i++) {
+                    pixels[i] = Util.maskAlpha(pixels[i]);
+                }
+                res.setRGB(x * CELL_SIZE, y * CELL_SIZE, CELL_SIZE, CELL_SIZE, pixels, 0, CELL_SIZE);
+            }
+        }
+        return res;
     }
     
     /**
@@ -83,6 +206,42 @@ public class CellBlock {
         return Util.copyAsNavSet(cellSet);
     }
     
+    /**
+     * Reports how each {@link Cell} of this CellBlock was decomposed, as comma-separated values:
+     *  a header line, then one line per Cell, in the default order, giving its coordinates,
+     *  its number of printed shapes, its number of printed shapes before any simplification
+     *  to fit a shape budget, and its {@link Cell#getMaxColorError()}.
+     * The report ends with a summary line, starting with '#', of the totals over every Cell,
+     *  including how many Cells were simplified and how many shapes that removed.
+     * @return the lines of the report.
+     */
+    public Iterable<String> shapeReport() {
+        List<String> res = new ArrayList<>(cellSet.size() + 2);
+        res.add("x,y,shapes,shapesBeforeBudget,maxColorError");
+        long shapes = 0;
+        int maxShapes = 0;
+        int simplifiedCells = 0;
+        long removedShapes = 0;
+        float maxError = 0;
+        for (Cell cell : cellSet) {
+            int count = cell.printedShapeCount();
+            int before = cell.unsimplifiedShapeCount();
+            float error = cell.getMaxColorError();
+            res.add( String.format(Locale.ROOT, "%d,%d,%d,%d,%.3f", cell.getX(), cell.getY(), count, before, error) );
+            shapes += count;
+            maxShapes = Math.max(maxShapes, count);
+            if (before > count) {
+                simplifiedCells++;
+                removedShapes += before - count;
+            }
+            maxError = Math.max(maxError, error);
+        }
+        res.add( String.format(Locale.ROOT,
+                "# cells=%d,shapes=%d,maxShapesPerCell=%d,simplifiedCells=%d,removedShapes=%d,maxColorError=%.3f",
+                cellSet.size(), shapes, maxShapes, simplifiedCells, removedShapes, maxError) );
+        return res;
+    }
+    
     /**
      * Exports each {@link Cell} in this CellBlock as one line of a large {@link String}.
      * @param usePlaceholderForNull determines if empty cells are simply not reported on,
@@ -100,4 +259,24 @@ public class CellBlock {
                 .toList();
     }
     
+    /**
+     * Exports each {@link Cell} in this CellBlock as one line of a large {@link String},
+     *  with the Cells in the order given by the given {@link PrintOrder}.
+     * @param usePlaceholderForNull determines if empty cells are simply not reported on,
+     *                              or if they use a static placeholder
+     * @param order the order in which the Cells are to be printed
+     * @return a String for which each line is the output of
+     *         {@link Cell#export(boolean)} for each contained Cell, in the given order.
+     * @see #export(boolean)
+     */
+    public Iterable<String> export(
+            boolean usePlaceholderForNull,
+            PrintOrder order
+    ) {
+        return order.arrange(cellSet).stream()
+                .map(c -> c.export(usePlaceholderForNull))
+                .filter(Objects::nonNull)
+                .toList();
+    }
+    
 }
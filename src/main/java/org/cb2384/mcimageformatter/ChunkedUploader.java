@@ -0,0 +1,354 @@
+package org.cb2384.mcimageformatter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Uploads an export, as from {@link CellBlock#export(boolean)}, to an {@link UploadEndpoint} in size-limited chunks,
+ *  without first writing it to a file or holding it in memory as one piece.
+ * The lines are encoded exactly as they would be written to a file, each followed by the line separator,
+ *  and chunks break between lines where they can, so that concatenating the chunks in manifest order
+ *  gives back the file. An upload may be fed lines with {@link #upload}, or bytes as they are written,
+ *  alongside an output file, with {@link #open()}.
+ * Chunks are uploaded concurrently, each on its own thread (a virtual thread, where the runtime has them);
+ *  at most a fixed number are in flight at once, and reading the export waits for a free slot.
+ * Failed chunk uploads and the final commit are retried with exponential backoff and jitter.
+ */
+public class ChunkedUploader {
+    
+    /**
+     * Default upper bound on the size of one chunk, in bytes.
+     */
+    public static final int DEFAULT_CHUNK_BYTES = 512 << 10;
+    
+    /**
+     * Default upper bound on the number of chunks being uploaded at once.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    
+    /**
+     * Default number of attempts at each chunk before the upload fails.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    
+    private static final long INITIAL_BACKOFF_MILLIS = 200;
+    
+    private static final long MAX_BACKOFF_MILLIS = 10_000;
+    
+    private final UploadEndpoint endpoint;
+    
+    private final @Positive int chunkBytes;
+    
+    private final @Positive int maxInFlight;
+    
+    private final @Positive int maxAttempts;
+    
+    /**
+     * The result of a completed upload.
+     */
+    public static final class Manifest {
+        
+        private final String uploadId;
+        
+        private final List<String> chunkIds;
+        
+        private final @NonNegative long totalBytes;
+        
+        private Manifest(
+                String uploadId,
+                List<String> chunkIds,
+                @NonNegative long totalBytes
+        ) {
+            this.uploadId = uploadId;
+            this.chunkIds = chunkIds;
+            this.totalBytes = totalBytes;
+        }
+        
+        /**
+         * Gets the id of the whole upload, as returned by {@link UploadEndpoint#commit}.
+         * @return the id of the upload.
+         */
+        public String getUploadId() {
+            return uploadId;
+        }
+        
+        /**
+         * Gets the ids of the chunks, in the order in which they are to be concatenated.
+         * @return an unmodifiable list of the chunk ids.
+         */
+        public List<String> getChunkIds() {
+            return chunkIds;
+        }
+        
+        /**
+         * Gets the combined length of every chunk.
+         * @return the number of bytes uploaded.
+         */
+        public @NonNegative long getTotalBytes() {
+            return totalBytes;
+        }
+    }
+    
+    /**
+     * Builds an uploader with the default settings.
+     * @param endpoint where to upload to.
+     */
+    public ChunkedUploader(
+            UploadEndpoint endpoint
+    ) {
+        this(endpoint, DEFAULT_CHUNK_BYTES, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_ATTEMPTS);
+    }
+    
+    /**
+     * Builds an uploader.
+     * @param endpoint where to upload to.
+     * @param chunkBytes the upper bound on the size of one chunk, in bytes.
+     * @param maxInFlight the upper bound on the number of chunks being uploaded at once.
+     * @param maxAttempts the number of attempts at each chunk, and at the commit, before giving up.
+     */
+    public ChunkedUploader(
+            UploadEndpoint endpoint,
+            @Positive int chunkBytes,
+            @Positive int maxInFlight,
+            @Positive int maxAttempts
+    ) {
+        if (chunkBytes < 1 || maxInFlight < 1 || maxAttempts < 1) {
+            throw new IllegalArgumentException("Chunk size, concurrency, and attempts must be positive");
+        }
+        //else
+        this.endpoint = endpoint;
+        this.chunkBytes = chunkBytes;
+        this.maxInFlight = maxInFlight;
+        this.maxAttempts = maxAttempts;
+    }
+    
+    /**
+     * Uploads the given lines, then commits the manifest of their chunks.
+     * @param lines the lines to upload, as from {@link CellBlock#export(boolean)}; read once, in order.
+     * @return the manifest of the completed upload.
+     * @throws IOException if a chunk or the commit still fails after every attempt.
+     */
+    public Manifest upload(
+            Iterable<String> lines
+    ) throws IOException {
+        byte[] separator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        try (Upload upload = open()) {
+            for (String line : lines) {
+                upload.write( line.getBytes(StandardCharsets.UTF_8) );
+                upload.write(separator);
+            }
+            return upload.finish();
+        }
+    }
+    
+    /**
+     * Starts an upload that is fed as a stream, such as the bytes of an output file as they are written.
+     * @return the stream of the upload; {@link Upload#finish()} it to commit, and close it in any case.
+     */
+    public Upload open() {
+        return new Upload();
+    }
+    
+    /**
+     * An upload in progress, fed with the encoded lines of an export, each followed by the line separator.
+     * A chunk is sent as soon as it is full, breaking after the last whole line where there is one,
+     *  so that the upload proceeds while the export is still being written.
+     * Writing waits while the most chunks are in flight. Not safe for concurrent writes.
+     */
+    public final class Upload extends OutputStream {
+        
+        private final byte lineEnd;
+        
+        private final Semaphore slots = new Semaphore(maxInFlight);
+        
+        private final List<Future<String>> chunkIds = new ArrayList<>();
+        
+        private final ExecutorService uploaders = newUploadExecutor();
+        
+        private final byte[] chunk = new byte[chunkBytes];
+        
+        private @NonNegative int count;
+        
+        /**
+         * The length of the whole lines at the start of the chunk; 0 if it holds none.
+         */
+        private @NonNegative int wholeLines;
+        
+        private long totalBytes;
+        
+        private boolean closed;
+        
+        private Upload() {
+            byte[] separator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+            lineEnd = separator[separator.length - 1];
+        }
+        
+        public void write(
+                int b
+        ) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+        
+        public void write(
+                byte[] b,
+                @NonNegative int off,
+                @NonNegative int len
+        ) throws IOException {
+            if (closed) {
+                throw new IOException("Upload closed");
+            }
+            //else
+            try {
+                for (int i = off; i < off + len; i++) {
+                    if (count == chunkBytes) {
+                        sendChunk();
+                    }
+                    chunk[count++] = b[i];
+                    if (b[i] == lineEnd) {
+                        wholeLines = count;
+                    }
+                }
+            } catch (InterruptedException IE) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Upload interrupted");
+            }
+            totalBytes += len;
+        }
+        
+        /**
+         * Sends the full chunk up to its last whole line, or all of it if a line is longer than a chunk,
+         *  and keeps the rest for the next.
+         */
+        private void sendChunk() throws InterruptedException {
+            int length = (wholeLines > 0) ?
+                    wholeLines :
+                    count;
+            chunkIds.add( submit(uploaders, slots, chunkIds.size(), Arrays.copyOf(chunk, length)) );
+            System.arraycopy(chunk, length, chunk, 0, count - length);
+            count -= length;
+            wholeLines = 0;
+        }
+        
+        /**
+         * Sends what is left, waits for every chunk, then commits the manifest of the chunks.
+         * @return the manifest of the completed upload.
+         * @throws IOException if a chunk or the commit still fails after every attempt.
+         */
+        public Manifest finish() throws IOException {
+            if (closed) {
+                throw new IOException("Upload closed");
+            }
+            //else
+            try {
+                if (count > 0) {
+                    sendChunk();
+                }
+                List<String> ids = new ArrayList<>(chunkIds.size());
+                for (Future<String> id : chunkIds) {
+                    ids.add( id.get() );
+                }
+                long committedBytes = totalBytes;
+                String uploadId = withRetries( () -> endpoint.commit(ids, committedBytes) );
+                return new Manifest(uploadId, Collections.unmodifiableList(ids), totalBytes);
+            } catch (InterruptedException IE) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Upload interrupted");
+            } catch (ExecutionException EE) {
+                if (EE.getCause() instanceof IOException IOE) {
+                    throw IOE;
+                }
+                //else
+                throw new RuntimeException(EE.getCause());
+            } finally {
+                close();
+            }
+        }
+        
+        /**
+         * Stops the upload; if it was not finished, chunks still in flight are abandoned and nothing is committed.
+         */
+        public void close() {
+            closed = true;
+            uploaders.shutdownNow();
+        }
+    }
+    
+    private Future<String> submit(
+            ExecutorService uploaders,
+            Semaphore slots,
+            @NonNegative int index,
+            byte[] chunk
+    ) throws InterruptedException {
+        slots.acquire();
+        try {
+            return uploaders.submit(() -> {
+                try {
+                    return withRetries( () -> endpoint.uploadChunk(index, chunk) );
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RuntimeException RE) {
+            slots.release();
+            throw RE;
+        }
+    }
+    
+    @FunctionalInterface
+    private interface Attempt {
+        String run() throws IOException;
+    }
+    
+    private String withRetries(
+            Attempt attempt
+    ) throws IOException, InterruptedException {
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        for (int tries = 1;; tries++) {
+            try {
+                return attempt.run();
+            } catch (InterruptedIOException IIOE) {
+                throw IIOE;
+            } catch (IOException IOE) {
+                if (tries >= maxAttempts) {
+                    throw IOE;
+                }
+            }
+            // Full jitter, so that chunks that failed together do not all retry together
+            Thread.sleep( ThreadLocalRandom.current().nextLong(backoff + 1) );
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+    
+    /**
+     * Gets a thread-per-task executor, on virtual threads where the runtime has them (Java 21 and later).
+     * The number of tasks is bounded by the caller, so platform threads are an acceptable fallback.
+     */
+    private static ExecutorService newUploadExecutor() {
+        try {
+            return (ExecutorService) MethodHandles.publicLookup()
+                    .findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                            MethodType.methodType(ExecutorService.class))
+                    .invoke();
+        } catch (Throwable noVirtualThreads) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package org.cb2384.mcimageformatter;
+
+import static org.cb2384.mcimageformatter.Util.CELL_SIZE;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.IntStream;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Runs {@link ConversionJob}s on a fixed pool of worker threads, so that one engine may be shared
+ *  by every part of a program that converts images, from any thread.
+ * Each submitted job gets a {@link Handle}, through which its progress may be followed, and which may cancel it.
+ * A job converts its image one row of {@link Cell}s at a time, the Cells of a row in parallel;
+ *  between rows it reports its progress to its {@link Listener}, and stops if it has been cancelled
+ *  or has run past its deadline. The output is written to a temporary file, which replaces the output only once
+ *  the job has completed, so a job that fails leaves the output as it was.
+ * With an {@link AdmissionController}, each job is estimated when it is submitted, and waits for room
+ *  in the memory budget before its image is decoded, or is rejected at once.
+ * Every failure is reported as a {@link ConversionException} with its {@link ConversionException.Reason}.
+ */
+public class ConversionEngine
+        implements Closeable {
+    
+    private static final long ADMISSION_POLL_MILLIS = 50;
+    
+    private final ExecutorService workers;
+    
+    private final @Nullable AdmissionController admission;
+    
+    private final Object submitLock = new Object();
+    
+    /**
+     * Receives the progress of a job, on the thread running it; must be thread-safe if shared between jobs.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        
+        /**
+         * Receives no progress.
+         */
+        Listener NONE = (handle, rowsDone, rows) -> {};
+        
+        /**
+         * Called after each row of Cells of a job has been decomposed.
+         * @param handle the handle of the job.
+         * @param rowsDone the number of rows decomposed so far.
+         * @param rows the number of rows of the image.
+         */
+        void onProgress(
+                Handle handle,
+                @NonNegative int rowsDone,
+                @NonNegative int rows
+        );
+    }
+    
+    /**
+     * What a completed job produced.
+     */
+    public static final class Result {
+        
+        private final Path output;
+        
+        private final @NonNegative int cells;
+        
+        private final @NonNegative int lines;
+        
+        private final @NonNegative long nanos;
+        
+        private Result(
+                Path output,
+                @NonNegative int cells,
+                @NonNegative int lines,
+                @NonNegative long nanos
+        ) {
+            this.output = output;
+            this.cells = cells;
+            this.lines = lines;
+            this.nanos = nanos;
+        }
+        
+        public Path getOutput() {
+            return output;
+        }
+        
+        /**
+         * Gets the number of Cells of the image.
+         * @return the number of Cells.
+         */
+        public @NonNegative int getCells() {
+            return cells;
+        }
+        
+        /**
+         * Gets the number of lines written, including any header of the format.
+         * @return the number of lines.
+         */
+        public @NonNegative int getLines() {
+            return lines;
+        }
+        
+        /**
+         * Gets the time from the start of the job to its completion, not counting any wait for a worker.
+         * @return the time taken, in nanoseconds.
+         */
+        public @NonNegative long getNanos() {
+            return nanos;
+        }
+    }
+    
+    /**
+     * What a {@link Handle} runs, given the handle itself.
+     */
+    @FunctionalInterface
+    private interface Work {
+        Result run(
+                Handle handle
+        ) throws ConversionException;
+    }
+    
+    /**
+     * A submitted job, through which it may be followed, awaited, and cancelled.
+     */
+    public static final class Handle {
+        
+        private final ConversionJob job;
+        
+        private final long deadlineNanos;
+        
+        private final boolean hasDeadline;
+        
+        private volatile boolean cancelled;
+        
+        private volatile @NonNegative int rowsDone;
+        
+        private volatile @NonNegative int rows;
+        
+        private final FutureTask<Result> future;
+        
+        private Handle(
+                ConversionJob job,
+                long submitNanos,
+                Work work
+        ) {
+            this.job = job;
+            hasDeadline = job.getTimeout() != null;
+            deadlineNanos = hasDeadline ?
+                    submitNanos + job.getTimeout().toNanos() :
+                    0;
+            future = new FutureTask<>( () -> work.run(this) );
+        }
+        
+        public ConversionJob getJob() {
+            return job;
+        }
+        
+        /**
+         * Gets the fraction of the rows of Cells decomposed so far.
+         * @return the progress, from 0 to 1; 0 until the image has been read.
+         */
+        public double getProgress() {
+            int total = rows;
+            return (total == 0) ?
+                    0 :
+                    (double) rowsDone / total;
+        }
+        
+        /**
+         * Asks the job to stop; it stops before its next row of Cells, or before it starts if it has not yet.
+         * A job that has already completed is not affected.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+        
+        /**
+         * Determines if the job has completed, failed, or been cancelled.
+         * @return true if the job is over.
+         */
+        public boolean isDone() {
+            return future.isDone();
+        }
+        
+        /**
+         * Waits for the job to be over.
+         * @return what the job produced.
+         * @throws ConversionException if the job failed or was cancelled.
+         * @throws InterruptedException if the waiting thread is interrupted; the job goes on.
+         */
+        public Result await() throws ConversionException, InterruptedException {
+            try {
+                return future.get();
+            } catch (ExecutionException EE) {
+                throw unwrap(EE);
+            } catch (CancellationException CE) {
+                throw new ConversionException(ConversionException.Reason.CANCELLED, "Job was dropped", CE);
+            }
+        }
+        
+        /**
+         * Waits for the job to be over, for at most the given time.
+         * @param timeout the longest time to wait.
+         * @param unit the unit of the timeout.
+         * @return what the job produced.
+         * @throws ConversionException if the job failed or was cancelled.
+         * @throws InterruptedException if the waiting thread is interrupted; the job goes on.
+         * @throws TimeoutException if the job is not over in time; the job goes on.
+         */
+        public Result await(
+                long timeout,
+                TimeUnit unit
+        ) throws ConversionException, InterruptedException, TimeoutException {
+            try {
+                return future.get(timeout, unit);
+            } catch (ExecutionException EE) {
+                throw unwrap(EE);
+            } catch (CancellationException CE) {
+                throw new ConversionException(ConversionException.Reason.CANCELLED, "Job was dropped", CE);
+            }
+        }
+        
+        private static ConversionException unwrap(
+                ExecutionException EE
+        ) {
+            return (EE.getCause() instanceof ConversionException CE) ?
+                    CE :
+                    new ConversionException(ConversionException.Reason.INTERNAL, "Job failed", EE.getCause());
+        }
+        
+        /**
+         * Stops the job, by throwing, if it has been cancelled or has run past its deadline.
+         */
+        private void checkpoint() throws ConversionException {
+            if (cancelled) {
+                throw new ConversionException(ConversionException.Reason.CANCELLED,
+                        "Cancelled after " + rowsDone + " of " + rows + " rows", null);
+            }
+            //else
+            if (hasDeadline && System.nanoTime() - deadlineNanos > 0) {
+                throw new ConversionException(ConversionException.Reason.DEADLINE_EXCEEDED,
+                        "Deadline passed after " + rowsDone + " of " + rows + " rows", null);
+            }
+        }
+    }
+    
+    /**
+     * Builds an engine with the given number of worker threads, each of which runs one job at a time.
+     * @param workers the number of jobs that may run at once.
+     */
+    public ConversionEngine(
+            @Positive int workers
+    ) {
+        this(workers, null);
+    }
+    
+    /**
+     * Builds an engine with the given number of worker threads, which admits jobs through the given controller.
+     * @param workers the number of jobs that may run at once, memory permitting.
+     * @param admission the controller of the memory budget, or null to admit every job.
+     */
+    public ConversionEngine(
+            @Positive int workers,
+            @Nullable AdmissionController admission
+    ) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Workers must be positive");
+        }
+        //else
+        this.workers = Executors.newFixedThreadPool(workers);
+        this.admission = admission;
+    }
+    
+    /**
+     * Submits a job, which runs once a worker is free; its deadline, if any, runs from now.
+     * @param job the job to run.
+     * @param listener receives the progress of the job.
+     * @return the handle of the job.
+     * @throws RejectedExecutionException if this engine has been closed.
+     */
+    public Handle submit(
+            ConversionJob job,
+            Listener listener
+    ) {
+        long submitNanos = System.nanoTime();
+        long bytes = 0;
+        if (admission != null) {
+            try {
+                bytes = AdmissionController.estimatePeakBytes(job);
+            } catch (IOException IOE) {
+                return failed(job, submitNanos, new ConversionException(
+                        ConversionException.Reason.INPUT_UNREADABLE, "Cannot read " + job.getInput(), IOE) );
+            }
+        }
+        
+        // Jobs are admitted in the order they were queued, and workers take them in the order they were executed;
+        //  were the two orders to differ, a job could wait on the budget of one that waits on its worker
+        synchronized (submitLock) {
+            AdmissionController.Ticket ticket = null;
+            if (admission != null) {
+                ticket = admission.enqueue(bytes);
+                if (ticket == null) {
+                    return failed(job, submitNanos, new ConversionException(
+                            ConversionException.Reason.REJECTED, "Needs an estimated " + bytes + " bytes; "
+                                    + admission.stats(), null) );
+                }
+            }
+            //else
+            AdmissionController.Ticket admissionTicket = ticket;
+            // The task is in place before it can run, so the handle is complete wherever it is seen from
+            Handle handle = new Handle(job, submitNanos, h -> {
+                try {
+                    if (admissionTicket != null) {
+                        awaitAdmission(h, admissionTicket);
+                    }
+                    return run(h, listener);
+                } finally {
+                    if (admissionTicket != null) {
+                        admission.release(admissionTicket);
+                    }
+                }
+            });
+            try {
+                workers.execute(handle.future);
+            } catch (RejectedExecutionException REE) {
+                // The task will never run, so will never give its ticket back
+                if (admissionTicket != null) {
+                    admission.release(admissionTicket);
+                }
+                throw REE;
+            }
+            return handle;
+        }
+    }
+    
+    /**
+     * Builds the handle of a job that fails before it is given to a worker.
+     */
+    private static Handle failed(
+            ConversionJob job,
+            long submitNanos,
+            ConversionException CE
+    ) {
+        Handle handle = new Handle(job, submitNanos, h -> {
+            throw CE;
+        });
+        handle.future.run();
+        return handle;
+    }
+    
+    /**
+     * Submits a job with no listener, as {@link #submit(ConversionJob, Listener)}.
+     * @param job the job to run.
+     * @return the handle of the job.
+     */
+    public Handle submit(
+            ConversionJob job
+    ) {
+        return submit(job, Listener.NONE);
+    }
+    
+    /**
+     * Takes a snapshot of the admission statistics of this engine.
+     * @return the statistics of its AdmissionController, or null if it has none.
+     */
+    public AdmissionController.@Nullable Stats admissionStats() {
+        return (admission == null) ?
+                null :
+                admission.stats();
+    }
+    
+    /**
+     * Stops accepting jobs; jobs already submitted still run.
+     */
+    @Override
+    public void close() {
+        workers.shutdown();
+    }
+    
+    /**
+     * Waits until the job is admitted, stopping if it is cancelled or runs past its deadline meanwhile.
+     */
+    private void awaitAdmission(
+            Handle handle,
+            AdmissionController.Ticket ticket
+    ) throws ConversionException {
+        assert admission != null;
+        try {
+            while (!admission.awaitAdmission(ticket, ADMISSION_POLL_MILLIS)) {
+                handle.checkpoint();
+            }
+        } catch (InterruptedException IE) {
+            Thread.currentThread().interrupt();
+            throw new ConversionException(ConversionException.Reason.CANCELLED, "Interrupted waiting for memory", IE);
+        }
+    }
+    
+    private static Result run(
+            Handle handle,
+            Listener listener
+    ) throws ConversionException {
+        long start = System.nanoTime();
+        handle.checkpoint();
+        ConversionJob job = handle.job;
+        
+        BufferedImage image;
+        try {
+            image = ImageTransformer.loadImage( job.getInput().toString() );
+        } catch (IOException IOE) {
+            throw new ConversionException(ConversionException.Reason.INPUT_UNREADABLE,
+                    "Cannot read " + job.getInput(), IOE);
+        }
+        if (image == null) {
+            throw new ConversionException(ConversionException.Reason.INPUT_UNREADABLE,
+                    "Not an image: " + job.getInput(), null);
+        }
+        //else
+        PaddedPixels prepared;
+        try {
+            prepared = ImageTransformer.preparePixels( job.getWidth(), job.getHeight(), job.getResizeMethod(),
+                    image );
+        } catch (IllegalArgumentException IAE) {
+            throw new ConversionException(ConversionException.Reason.INVALID_JOB, "Cannot resize as asked", IAE);
+        }
+        
+        int cellsHeight = prepared.getHeight() / CELL_SIZE;
+        int cellsWidth = prepared.getWidth() / CELL_SIZE;
+        handle.rows = cellsHeight;
+        List<Cell> cells = new ArrayList<>(cellsHeight * cellsWidth);
+        for (int y = 0; y < cellsHeight; y++) {
+            handle.checkpoint();
+            int row = y;
+            cells.addAll( IntStream.range(0, cellsWidth)
+                    .parallel()
+                    .mapToObj(x -> {
+                        // Points are defined from 1, not 0.
+                        return new Cell( new Point(x + 1, cellsHeight - row), prepared.readCell(x, row),
+                                job.getOptions() )
+                                .prepareShapes();
+                    })
+                    .toList() );
+            handle.rowsDone = y + 1;
+            listener.onProgress(handle, y + 1, cellsHeight);
+        }
+        handle.checkpoint();
+        
+        CellBlock block = CellBlock.fromCells(prepared, cells);
+        List<Cell> arranged = (job.getOrder() == null) ?
+                List.copyOf( block.seeCells() ) :
+                job.getOrder().arrange( block.seeCells() );
+        List<String> lines = job.getFormat().export(arranged, job.usesPlaceholders());
+        
+        Path output = job.getOutput().toAbsolutePath();
+        Path temp = output.resolveSibling("." + output.getFileName() + ".tmp");
+        try {
+            try (BufferedWriter bw = Files.newBufferedWriter(temp)) {
+                Main.write(lines, bw);
+            }
+            // A last chance to stop, before the output is replaced
+            handle.checkpoint();
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException IOE) {
+            throw new ConversionException(ConversionException.Reason.OUTPUT_FAILED, "Cannot write " + output, IOE);
+        } finally {
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+                // Only a leftover temporary file
+            }
+        }
+        return new Result(output, cells.size(), lines.size(), System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,75 @@
+package org.cb2384.mcimageformatter;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Thrown when a job of a {@link ConversionEngine} does not complete; {@link #getReason()} tells why,
+ *  so that callers can tell a job that may simply be retried from one that never will succeed.
+ */
+public class ConversionException
+        extends Exception {
+    
+    /**
+     * Why a job did not complete.
+     */
+    public enum Reason {
+        /**
+         * The input does not exist, or could not be read or decoded as an image.
+         */
+        INPUT_UNREADABLE,
+        /**
+         * The settings of the job do not apply to its input, such as a resize too large to be held.
+         */
+        INVALID_JOB,
+        /**
+         * The job was turned away by the {@link AdmissionController} of its engine: it could never fit
+         *  in the memory budget, or too many jobs were already waiting for memory.
+         */
+        REJECTED,
+        /**
+         * The job was cancelled through its {@link ConversionEngine.Handle}.
+         */
+        CANCELLED,
+        /**
+         * The job did not finish before its deadline.
+         */
+        DEADLINE_EXCEEDED,
+        /**
+         * The output could not be written.
+         */
+        OUTPUT_FAILED,
+        /**
+         * The conversion itself failed; this is a bug.
+         */
+        INTERNAL
+    }
+    
+    private static final long serialVersionUID = 1L;
+    
+    private final Reason reason;
+    
+    /**
+     * Builds an exception for the given reason.
+     * @param reason why the job did not complete.
+     * @param message a description of the failure.
+     * @param cause the underlying failure, if any.
+     */
+    public ConversionException(
+            Reason reason,
+            String message,
+            @Nullable Throwable cause
+    ) {
+        super(reason + ": " + message, cause);
+        this.reason = reason;
+    }
+    
+    /**
+     * Gets why the job did not complete.
+     * @return the reason.
+     */
+    public Reason getReason() {
+        return reason;
+    }
+}
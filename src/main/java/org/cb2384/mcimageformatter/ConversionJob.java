@@ -0,0 +1,216 @@
+package org.cb2384.mcimageformatter;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+import org.imgscalr.Scalr;
+
+/**
+ * The specification of one conversion for a {@link ConversionEngine}: what to read, where to write,
+ *  and every setting that the command line would otherwise give through arguments and system properties.
+ * A job is built with {@link #of} and then adjusted with the with- methods, each of which returns a copy;
+ *  by default the image is not resized, empty Cells are skipped, only equal colors are merged,
+ *  the output is in the {@link ExportFormat#TOOLTIP} format in the default order, and there is no deadline.
+ * Instances are immutable, so one job may be submitted any number of times, from any thread.
+ */
+public final class ConversionJob {
+    
+    private final Path input;
+    
+    private final Path output;
+    
+    private final @NonNegative int width;
+    
+    private final @NonNegative int height;
+    
+    private final Scalr.Method resizeMethod;
+    
+    private final boolean usePlaceholderForNull;
+    
+    private final DecompositionOptions options;
+    
+    private final ExportFormat format;
+    
+    private final @Nullable PrintOrder order;
+    
+    private final @Nullable Duration timeout;
+    
+    private ConversionJob(
+            Path input,
+            Path output,
+            @NonNegative int width,
+            @NonNegative int height,
+            Scalr.Method resizeMethod,
+            boolean usePlaceholderForNull,
+            DecompositionOptions options,
+            ExportFormat format,
+            @Nullable PrintOrder order,
+            @Nullable Duration timeout
+    ) {
+        this.input = input;
+        this.output = output;
+        this.width = width;
+        this.height = height;
+        this.resizeMethod = resizeMethod;
+        this.usePlaceholderForNull = usePlaceholderForNull;
+        this.options = options;
+        this.format = format;
+        this.order = order;
+        this.timeout = timeout;
+    }
+    
+    /**
+     * Builds a job with the default settings.
+     * @param input the image to convert.
+     * @param output the file to which to write the result; replaced only once the job has completed.
+     * @return a job converting the given image to the given file.
+     */
+    public static ConversionJob of(
+            Path input,
+            Path output
+    ) {
+        return new ConversionJob(input, output, 0, 0, Scalr.Method.AUTOMATIC, false, DecompositionOptions.EXACT,
+                ExportFormat.TOOLTIP, null, null);
+    }
+    
+    /**
+     * Gets a copy of this job that resizes the image, as the resize arguments of the command line.
+     * @param width the width to resize to, or 0 to follow the height.
+     * @param height the height to resize to, or 0 to follow the width.
+     * @param method the resize method, as {@link Scalr#resize}; {@link Scalr.Method#AUTOMATIC} by default.
+     * @return a copy of this job with the given resize.
+     */
+    public ConversionJob withResize(
+            @NonNegative int width,
+            @NonNegative int height,
+            Scalr.Method method
+    ) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("Width and height must be non-negative");
+        }
+        //else
+        if (method == null) {
+            throw new IllegalArgumentException("Resize method must not be null");
+        }
+        //else
+        return new ConversionJob(input, output, width, height, method, usePlaceholderForNull, options, format,
+                order, timeout);
+    }
+    
+    /**
+     * Gets a copy of this job that writes, or skips, empty Cells as {@link Cell#export(boolean)}.
+     * @param usePlaceholderForNull whether to write a placeholder for each empty Cell.
+     * @return a copy of this job with the given placeholder setting.
+     */
+    public ConversionJob withPlaceholders(
+            boolean usePlaceholderForNull
+    ) {
+        return new ConversionJob(input, output, width, height, resizeMethod, usePlaceholderForNull, options, format,
+                order, timeout);
+    }
+    
+    /**
+     * Gets a copy of this job that decomposes each Cell with the given options.
+     * @param options how to decompose each Cell into shapes.
+     * @return a copy of this job with the given options.
+     */
+    public ConversionJob withOptions(
+            DecompositionOptions options
+    ) {
+        return new ConversionJob(input, output, width, height, resizeMethod, usePlaceholderForNull, options, format,
+                order, timeout);
+    }
+    
+    /**
+     * Gets a copy of this job that writes in the given format.
+     * @param format the format of the output.
+     * @return a copy of this job with the given format.
+     */
+    public ConversionJob withFormat(
+            ExportFormat format
+    ) {
+        return new ConversionJob(input, output, width, height, resizeMethod, usePlaceholderForNull, options, format,
+                order, timeout);
+    }
+    
+    /**
+     * Gets a copy of this job that writes the Cells in the given order.
+     * @param order the order of the Cells, or null for the default order.
+     * @return a copy of this job with the given order.
+     */
+    public ConversionJob withOrder(
+            @Nullable PrintOrder order
+    ) {
+        return new ConversionJob(input, output, width, height, resizeMethod, usePlaceholderForNull, options, format,
+                order, timeout);
+    }
+    
+    /**
+     * Gets a copy of this job that fails with {@link ConversionException.Reason#DEADLINE_EXCEEDED}
+     *  if it has not completed within the given time of being submitted.
+     * @param timeout the time allowed, or null for no deadline.
+     * @return a copy of this job with the given deadline.
+     */
+    public ConversionJob withTimeout(
+            @Nullable Duration timeout
+    ) {
+        if (timeout != null && timeout.isNegative()) {
+            throw new IllegalArgumentException("Timeout must be non-negative");
+        }
+        //else
+        return new ConversionJob(input, output, width, height, resizeMethod, usePlaceholderForNull, options, format,
+                order, timeout);
+    }
+    
+    public Path getInput() {
+        return input;
+    }
+    
+    public Path getOutput() {
+        return output;
+    }
+    
+    /**
+     * Gets the width to which the image is resized.
+     * @return the width, or 0 if it follows the height, or the image is not resized.
+     */
+    public @NonNegative int getWidth() {
+        return width;
+    }
+    
+    /**
+     * Gets the height to which the image is resized.
+     * @return the height, or 0 if it follows the width, or the image is not resized.
+     */
+    public @NonNegative int getHeight() {
+        return height;
+    }
+    
+    public Scalr.Method getResizeMethod() {
+        return resizeMethod;
+    }
+    
+    public boolean usesPlaceholders() {
+        return usePlaceholderForNull;
+    }
+    
+    public DecompositionOptions getOptions() {
+        return options;
+    }
+    
+    public ExportFormat getFormat() {
+        return format;
+    }
+    
+    public @Nullable PrintOrder getOrder() {
+        return order;
+    }
+    
+    public @Nullable Duration getTimeout() {
+        return timeout;
+    }
+}
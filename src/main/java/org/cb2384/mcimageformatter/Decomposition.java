@@ -0,0 +1,65 @@
+package org.cb2384.mcimageformatter;
+
+import java.util.NavigableSet;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * The result of decomposing the pixels of a {@link Cell}: its shapes, the greatest color error among them,
+ *  and, for a decomposition simplified to fit a shape budget, how many printed shapes it had before.
+ */
+final class Decomposition {
+    
+    final NavigableSet<Shape> shapeSet;
+    
+    final @NonNegative float maxError;
+    
+    final @NonNegative int unsimplifiedShapeCount;
+    
+    /**
+     * Builds an unsimplified decomposition.
+     * @param shapeSet the shapes.
+     * @param maxError the greatest CIE76 &Delta;E between any pixel and the color of its shape.
+     */
+    Decomposition(
+            NavigableSet<Shape> shapeSet,
+            @NonNegative float maxError
+    ) {
+        this(shapeSet, maxError, printedShapeCount(shapeSet));
+    }
+    
+    /**
+     * Builds a decomposition.
+     * @param shapeSet the shapes.
+     * @param maxError the greatest CIE76 &Delta;E between any pixel and the color of its shape.
+     * @param unsimplifiedShapeCount the number of printed shapes before any simplification.
+     */
+    Decomposition(
+            NavigableSet<Shape> shapeSet,
+            @NonNegative float maxError,
+            @NonNegative int unsimplifiedShapeCount
+    ) {
+        this.shapeSet = shapeSet;
+        this.maxError = maxError;
+        this.unsimplifiedShapeCount = unsimplifiedShapeCount;
+    }
+    
+    /**
+     * Counts the shapes of the given set that will be printed, that is, that are not transparent.
+     * @param shapeSet the shapes to count.
+     * @return the number of printed shapes.
+     */
+    static @NonNegative int printedShapeCount(
+            NavigableSet<Shape> shapeSet
+    ) {
+        int res = 0;
+        for (Shape shape : shapeSet) {
+            if (shape.getColor() != 0) {
+                res++;
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,131 @@
+package org.cb2384.mcimageformatter;
+
+import java.util.Locale;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Settings for how each {@link Cell} is decomposed into {@link Shape}s.
+ * By default ({@link #EXACT}), pixels are merged only when their colors are exactly equal.
+ * With a color tolerance, pixels are also merged when their colors are within a maximum distance
+ *  of each other in CIELAB space (CIE76 &Delta;E, where about 2.3 is a just-noticeable difference),
+ *  and each merged shape takes a representative color.
+ * Transparent pixels are never merged with opaque ones.
+ * With a shape budget, a Cell with more printed shapes than the budget is then simplified until it fits.
+ * Instances are immutable.
+ */
+public final class DecompositionOptions {
+    
+    /**
+     * How the color of a shape that merges several colors is chosen.
+     */
+    public enum Representative {
+        /**
+         * The color of the first pixel of the shape, that is, the bottom-left one.
+         */
+        FIRST,
+        /**
+         * The mean of the colors of every pixel of the shape.
+         */
+        MEAN
+    }
+    
+    /**
+     * Merges only exactly equal colors, with no shape budget.
+     */
+    public static final DecompositionOptions EXACT = new DecompositionOptions(0, Representative.FIRST, 0);
+    
+    private final @NonNegative double maxColorDistance;
+    
+    private final Representative representative;
+    
+    private final @NonNegative int shapeBudget;
+    
+    private DecompositionOptions(
+            @NonNegative double maxColorDistance,
+            Representative representative,
+            @NonNegative int shapeBudget
+    ) {
+        this.maxColorDistance = maxColorDistance;
+        this.representative = representative;
+        this.shapeBudget = shapeBudget;
+    }
+    
+    /**
+     * Gets a copy of these options that merges colors within the given distance of each other.
+     * @param maxColorDistance the greatest CIE76 &Delta;E between merged colors; 0 merges only equal colors.
+     * @param representative how the color of a merged shape is chosen.
+     * @return a copy of these options with the given color tolerance.
+     */
+    public DecompositionOptions withColorTolerance(
+            @NonNegative double maxColorDistance,
+            Representative representative
+    ) {
+        if (!(maxColorDistance >= 0)) {
+            throw new IllegalArgumentException("Color distance must be non-negative");
+        }
+        //else
+        return new DecompositionOptions(maxColorDistance, representative, shapeBudget);
+    }
+    
+    /**
+     * Gets a copy of these options that limits each Cell to the given number of printed shapes.
+     * A Cell over the budget is simplified by repeatedly merging the neighboring shapes whose merge
+     *  adds the least color error, until it fits; see {@link Cell#getMaxColorError()} for the resulting error.
+     * @param shapeBudget the greatest number of printed shapes per Cell; 0 for no limit.
+     * @return a copy of these options with the given shape budget.
+     */
+    public DecompositionOptions withShapeBudget(
+            @NonNegative int shapeBudget
+    ) {
+        if (shapeBudget < 0) {
+            throw new IllegalArgumentException("Shape budget must be non-negative");
+        }
+        //else
+        return new DecompositionOptions(maxColorDistance, representative, shapeBudget);
+    }
+    
+    /**
+     * Gets the greatest CIE76 &Delta;E between colors that may be merged into one shape.
+     * @return the maximum color distance; 0 if only equal colors are merged.
+     */
+    public @NonNegative double getMaxColorDistance() {
+        return maxColorDistance;
+    }
+    
+    /**
+     * Gets how the color of a merged shape is chosen.
+     * @return the representative color rule.
+     */
+    public Representative getRepresentative() {
+        return representative;
+    }
+    
+    /**
+     * Gets the greatest number of printed shapes per Cell.
+     * @return the shape budget; 0 if there is no limit.
+     */
+    public @NonNegative int getShapeBudget() {
+        return shapeBudget;
+    }
+    
+    /**
+     * Determines if only exactly equal colors are merged.
+     * @return true if there is no color tolerance.
+     */
+    boolean isExact() {
+        // With no tolerance, every merged pixel has the same color, so the representative makes no difference
+        return maxColorDistance == 0;
+    }
+    
+    /**
+     * Describes these options in a stable form, such as for a cache key.
+     * @return a description of every setting.
+     */
+    String describe() {
+        return String.format(Locale.ROOT, "tolerance=%s,representative=%s,shapeBudget=%d",
+                maxColorDistance, representative, shapeBudget);
+    }
+}
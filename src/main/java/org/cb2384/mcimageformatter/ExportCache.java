@@ -0,0 +1,551 @@
+package org.cb2384.mcimageformatter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * A persistent, size-bounded, on-disk cache of exported {@link CellBlock}s.
+ * Each entry is keyed by a digest of the source image file and of every setting that affects the output,
+ *  and holds the encoded cell records exactly as they are written to an output file.
+ * Entries are stored in an indexable format, so that they can be memory-mapped
+ *  and either streamed straight to an output or read record by record:
+ * <pre>
+ *     int  magic (LC3C)
+ *     int  format version
+ *     int  record count (n)
+ *     int  reserved
+ *     long[n + 1] record offsets, relative to the start of the data region
+ *     byte[] data region; each record is UTF-8, followed by the line separator
+ * </pre>
+ * Entries are published with an atomic rename, and reads and evictions are coordinated between JVMs
+ *  with a lock on a file in the cache directory, so one directory may be shared by several processes.
+ * Temporary files that a killed process leaves behind are deleted, once a day old, when an entry is next stored.
+ */
+public class ExportCache {
+    
+    /**
+     * Default upper bound on the combined size of all entries, in bytes.
+     */
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+    
+    private static final int MAGIC = 0x4C_43_33_43;
+    
+    private static final int FORMAT_VERSION = 1;
+    
+    private static final int HEADER_BYTES = 4 * Integer.BYTES;
+    
+    private static final String ENTRY_SUFFIX = ".lc3c";
+    
+    private static final String TEMP_SUFFIX = ".tmp";
+    
+    /**
+     * How long a temporary file may go unwritten before it is taken to be left behind by a process that died.
+     */
+    private static final long STALE_TEMP_MILLIS = 24L * 60 * 60 * 1000;
+    
+    private static final String LOCK_NAME = ".lock";
+    
+    // A FileLock is held by the whole JVM, so threads of one JVM must take turns on it
+    private static final Map<Path, Object> JVM_MONITORS = new ConcurrentHashMap<>();
+    
+    private final Path directory;
+    
+    private final @Positive long maxBytes;
+    
+    private final Object monitor;
+    
+    /**
+     * Opens (creating if necessary) a cache in the given directory.
+     * @param directory the directory in which to keep the entries.
+     * @param maxBytes the upper bound on the combined size of all entries, in bytes.
+     * @throws IOException if the directory cannot be created.
+     */
+    public ExportCache(
+            Path directory,
+            @Positive long maxBytes
+    ) throws IOException {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive");
+        }
+        //else
+        Files.createDirectories(directory);
+        this.directory = directory.toRealPath();
+        this.maxBytes = maxBytes;
+        monitor = JVM_MONITORS.computeIfAbsent(this.directory, p -> new Object());
+    }
+    
+    /**
+     * Builds the key for an image file and the settings that will be used to convert it.
+     * The file is digested as raw bytes, so that a hit never requires the image to be decoded.
+     * @param imageFile the source image.
+     * @param settings every setting that affects the output, in a stable order and normalized form.
+     * @return a hexadecimal key, suitable for use as a file name.
+     * @throws IOException if the image file cannot be read.
+     */
+    public static String keyFor(
+            Path imageFile,
+            String... settings
+    ) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(imageFile), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        
+        digest.update((byte) 0);
+        digest.update( Integer.toString(FORMAT_VERSION).getBytes(StandardCharsets.UTF_8) );
+        for (String setting : settings) {
+            // Separate each setting, so that ("ab", "c") and ("a", "bc") differ
+            digest.update((byte) 0);
+            digest.update( String.valueOf(setting).getBytes(StandardCharsets.UTF_8) );
+        }
+        
+        return HexFormat.of().formatHex( digest.digest() );
+    }
+    
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException NSAE) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(NSAE);
+        }
+    }
+    
+    /**
+     * Streams the entry for the given key, if present, to the given channel,
+     *  and marks the entry as recently used, as {@link #openEntry}.
+     * @param key the key, from {@link #keyFor(Path, String...)}.
+     * @param out where to write the cached output.
+     * @return true if the entry was found and written, false on a miss.
+     * @throws IOException if reading the entry or writing the output fails.
+     */
+    public boolean transferTo(
+            String key,
+            WritableByteChannel out
+    ) throws IOException {
+        try (Entry entry = openEntry(key)) {
+            if (entry == null) {
+                return false;
+            }
+            //else
+            entry.transferTo(out);
+            return true;
+        }
+    }
+    
+    /**
+     * Opens the entry for the given key, if present, and marks it as recently used.
+     * Only opening the entry is done under the lock; it may then be read for as long as it takes,
+     *  such as into a slow upload, without holding up stores and evictions.
+     * @param key the key, from {@link #keyFor(Path, String...)}.
+     * @return the open entry, which must be closed, or null on a miss.
+     * @throws IOException if the entry cannot be opened, or is not an entry of this version.
+     */
+    public @Nullable Entry openEntry(
+            String key
+    ) throws IOException {
+        Path entry = entryPath(key);
+        synchronized (monitor) {
+            try (FileChannel lockChannel = openLockChannel()) {
+                FileLock lock = lockChannel.lock(0, Long.MAX_VALUE, true);
+                try {
+                    if (!Files.exists(entry)) {
+                        return null;
+                    }
+                    //else
+                    // The open channel keeps reading this entry, even if it is later replaced or evicted
+                    FileChannel ch = FileChannel.open(entry, StandardOpenOption.READ);
+                    try {
+                        long dataStart = readDataStart(ch);
+                        Files.setLastModifiedTime( entry, FileTime.fromMillis(System.currentTimeMillis()) );
+                        return new Entry(ch, dataStart);
+                    } catch (IOException IOE) {
+                        ch.close();
+                        throw IOE;
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+    
+    /**
+     * An open entry, from {@link #openEntry}; its records may be read without holding the lock of the cache.
+     */
+    public static final class Entry
+            implements Closeable {
+        
+        private final FileChannel channel;
+        
+        private final long dataStart;
+        
+        private Entry(
+                FileChannel channel,
+                long dataStart
+        ) {
+            this.channel = channel;
+            this.dataStart = dataStart;
+        }
+        
+        /**
+         * Streams the records of this entry, exactly as they were written to the output, to the given channel.
+         * @param out where to write the cached output.
+         * @throws IOException if reading the entry or writing the output fails.
+         */
+        public void transferTo(
+                WritableByteChannel out
+        ) throws IOException {
+            long size = channel.size();
+            for (long pos = dataStart; pos < size;) {
+                long window = Math.min(size - pos, Integer.MAX_VALUE);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, pos, window);
+                while (mapped.hasRemaining()) {
+                    out.write(mapped);
+                }
+                pos += window;
+            }
+        }
+        
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+    
+    /**
+     * Reads every record of the entry for the given key, if present, through a memory-mapping of the entry.
+     * @param key the key, from {@link #keyFor(Path, String...)}.
+     * @return the records, without line separators, or null on a miss.
+     * @throws IOException if reading the entry fails.
+     */
+    public @Nullable List<String> readRecords(
+            String key
+    ) throws IOException {
+        Path entry = entryPath(key);
+        synchronized (monitor) {
+            try (FileChannel lockChannel = openLockChannel()) {
+                FileLock lock = lockChannel.lock(0, Long.MAX_VALUE, true);
+                try {
+                    if (!Files.exists(entry)) {
+                        return null;
+                    }
+                    //else
+                    try (FileChannel ch = FileChannel.open(entry, StandardOpenOption.READ)) {
+                        if (ch.size() > Integer.MAX_VALUE) {
+                            throw new IOException("Cache entry too large to map whole: " + entry);
+                        }
+                        //else
+                        MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                        int count = checkHeader(mapped, entry);
+                        int dataStart = HEADER_BYTES + (count + 1) * Long.BYTES;
+                        int separatorLength = System.lineSeparator().getBytes(StandardCharsets.UTF_8).length;
+                        
+                        List<String> records = new ArrayList<>(count);
+                        for (int i = 0; i < count; i++) {
+                            int from = dataStart + (int) mapped.getLong(HEADER_BYTES + i * Long.BYTES);
+                            int to = dataStart + (int) mapped.getLong(HEADER_BYTES + (i + 1) * Long.BYTES);
+                            byte[] bytes = new byte[to - from - separatorLength];
+                            mapped.get(from, bytes);
+                            records.add( new String(bytes, StandardCharsets.UTF_8) );
+                        }
+                        return records;
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Stores the given records under the given key, then evicts the least recently used entries
+     *  until the cache fits within its size bound.
+     * @param key the key, from {@link #keyFor(Path, String...)}.
+     * @param records the cell records, as returned by {@link CellBlock#export(boolean)}.
+     * @throws IOException if the entry cannot be written.
+     */
+    public void store(
+            String key,
+            Iterable<String> records
+    ) throws IOException {
+        byte[] separator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+        try (Store store = openStore(key)) {
+            for (String record : records) {
+                store.write( record.getBytes(StandardCharsets.UTF_8) );
+                store.write(separator);
+            }
+            store.commit();
+        }
+    }
+    
+    /**
+     * Starts storing an entry that is fed as a stream, such as the bytes of an output file as they are written.
+     * @param key the key, from {@link #keyFor(Path, String...)}.
+     * @return the stream of the entry; {@link Store#commit()} it to publish the entry, and close it in any case.
+     * @throws IOException if the entry cannot be started.
+     */
+    public Store openStore(
+            String key
+    ) throws IOException {
+        return new Store( entryPath(key), Files.createTempFile(directory, key, TEMP_SUFFIX) );
+    }
+    
+    /**
+     * An entry being stored, fed with the encoded records, each followed by the line separator.
+     * The records are spooled to a private file, and their offsets noted, as they are written;
+     *  the entry is only assembled, and published, on {@link #commit()}.
+     * A failure to write is held back until then, so that a Store fed alongside an output file
+     *  never interrupts the output. Not safe for concurrent writes.
+     */
+    public final class Store extends OutputStream {
+        
+        private final Path entry;
+        
+        private final Path spool;
+        
+        private final OutputStream data;
+        
+        private final byte lineEnd;
+        
+        private long[] offsets = new long[1024];
+        
+        private @NonNegative int count;
+        
+        private long position;
+        
+        private @Nullable IOException failure;
+        
+        private boolean closed;
+        
+        private Store(
+                Path entry,
+                Path spool
+        ) throws IOException {
+            this.entry = entry;
+            this.spool = spool;
+            data = Files.newOutputStream(spool);
+            byte[] separator = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+            lineEnd = separator[separator.length - 1];
+        }
+        
+        public void write(
+                int b
+        ) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+        
+        public void write(
+                byte[] b,
+                @NonNegative int off,
+                @NonNegative int len
+        ) {
+            if (closed || failure != null) {
+                return;
+            }
+            //else
+            try {
+                data.write(b, off, len);
+            } catch (IOException IOE) {
+                failure = IOE;
+                return;
+            }
+            for (int i = off; i < off + len; i++) {
+                if (b[i] == lineEnd) {
+                    if (count + 1 == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                    }
+                    offsets[++count] = position + (i - off) + 1;
+                }
+            }
+            position += len;
+        }
+        
+        /**
+         * Assembles and publishes the entry, then evicts the least recently used entries
+         *  until the cache fits within its size bound.
+         * @throws IOException if writing the records failed, or the entry cannot be written.
+         */
+        public void commit() throws IOException {
+            if (closed) {
+                throw new IOException("Store closed");
+            }
+            //else
+            data.close();
+            if (failure != null) {
+                throw failure;
+            }
+            //else
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES + (count + 1) * Long.BYTES)
+                    .putInt(MAGIC)
+                    .putInt(FORMAT_VERSION)
+                    .putInt(count)
+                    .putInt(0);
+            for (int i = 0; i <= count; i++) {
+                header.putLong(offsets[i]);
+            }
+            header.flip();
+            
+            // Write privately, then publish atomically, so that readers never see a partial entry
+            Path temp = Files.createTempFile(directory, entry.getFileName().toString(), TEMP_SUFFIX);
+            try {
+                try (FileChannel ch = FileChannel.open(temp, StandardOpenOption.WRITE);
+                        FileChannel spooled = FileChannel.open(spool, StandardOpenOption.READ)) {
+                    while (header.hasRemaining()) {
+                        ch.write(header);
+                    }
+                    long size = spooled.size();
+                    for (long pos = 0; pos < size;) {
+                        pos += spooled.transferTo(pos, size - pos, ch);
+                    }
+                    ch.force(false);
+                }
+                
+                synchronized (monitor) {
+                    try (FileChannel lockChannel = openLockChannel()) {
+                        FileLock lock = lockChannel.lock();
+                        try {
+                            Files.move(temp, entry,
+                                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                            evict();
+                        } finally {
+                            lock.release();
+                        }
+                    }
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+                close();
+            }
+        }
+        
+        /**
+         * Stops storing; if the entry was not committed, nothing is published.
+         * @throws IOException if the spooled records cannot be deleted.
+         */
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            //else
+            closed = true;
+            try {
+                data.close();
+            } finally {
+                Files.deleteIfExists(spool);
+            }
+        }
+    }
+    
+    /**
+     * Must be called while holding the exclusive lock.
+     */
+    private void evict() throws IOException {
+        deleteStaleTemps();
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + ENTRY_SUFFIX)) {
+            stream.forEach(entries::add);
+        }
+        
+        Map<Path, FileTime> lastUsed = new HashMap<>();
+        long total = 0;
+        for (Path entry : entries) {
+            lastUsed.put(entry, Files.getLastModifiedTime(entry));
+            total += Files.size(entry);
+        }
+        entries.sort( Comparator.comparing(lastUsed::get) );
+        
+        for (Path entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            //else
+            long size = Files.size(entry);
+            Files.deleteIfExists(entry);
+            total -= size;
+        }
+    }
+    
+    /**
+     * Deletes the spools and unpublished entries that a process, killed before it could clean up, left behind.
+     */
+    private void deleteStaleTemps() throws IOException {
+        long cutoff = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + TEMP_SUFFIX)) {
+            for (Path temp : stream) {
+                if (Files.getLastModifiedTime(temp).toMillis() < cutoff) {
+                    Files.deleteIfExists(temp);
+                }
+            }
+        }
+    }
+    
+    private FileChannel openLockChannel() throws IOException {
+        return FileChannel.open(directory.resolve(LOCK_NAME),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+    
+    private Path entryPath(
+            String key
+    ) {
+        if (!key.matches("[0-9a-f]+")) {
+            throw new IllegalArgumentException("Invalid cache key");
+        }
+        //else
+        return directory.resolve(key + ENTRY_SUFFIX);
+    }
+    
+    private static long readDataStart(
+            FileChannel ch
+    ) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        while (header.hasRemaining()) {
+            if (ch.read(header) < 0) {
+                throw new IOException("Truncated cache entry");
+            }
+        }
+        header.flip();
+        int count = checkHeader(header, null);
+        return HEADER_BYTES + (count + 1L) * Long.BYTES;
+    }
+    
+    private static @NonNegative int checkHeader(
+            ByteBuffer header,
+            @Nullable Path entry
+    ) throws IOException {
+        if (header.getInt(0) != MAGIC || header.getInt(Integer.BYTES) != FORMAT_VERSION) {
+            throw new IOException("Not a cache entry of this version: " + entry);
+        }
+        //else
+        return header.getInt(2 * Integer.BYTES);
+    }
+}
@@ -0,0 +1,164 @@
+package org.cb2384.mcimageformatter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * The text format in which the {@link Cell}s of a job are written, one line per Cell, each line a Lua table.
+ * {@link #TOOLTIP} is the original format of {@link Cell#export(boolean)};
+ *  {@link #COMPACT} writes the same shapes in a fraction of the space.
+ */
+public enum ExportFormat {
+    
+    /**
+     * One line per Cell, as {@link Cell#export(boolean)}:
+     *  {tooltip="x: 1, y: 1",listShape={{minX=0,minY=0,maxX=16,maxY=16,tint=0xABCDEF}}}.
+     */
+    TOOLTIP,
+    
+    /**
+     * A first line declaring the palette, as {palette={0xABCDEF,0x123456}},
+     *  then one line per Cell holding its x, its y, and then its shapes, as {1,1,{1},{2,0,8}};
+     *  each shape is written by {@link Shape#exportCompact}, as an index into the palette followed by its bounds,
+     *  leaving out those at their defaults.
+     * The palette holds every color of the job, in the order in which they are first used.
+     */
+    COMPACT;
+    
+    /**
+     * An export in progress: the lines that precede the Cells, and the encoding of each Cell.
+     * For {@link #COMPACT}, this holds the palette of the Cells it was prepared for,
+     *  so may only encode those Cells.
+     */
+    public static final class Encoding {
+        
+        private final List<String> header;
+        
+        private final Function<Cell, @Nullable String> encoder;
+        
+        private Encoding(
+                List<String> header,
+                Function<Cell, @Nullable String> encoder
+        ) {
+            this.header = header;
+            this.encoder = encoder;
+        }
+        
+        /**
+         * Gets the lines written before any Cell.
+         * @return the header lines, which may be none.
+         */
+        public List<String> header() {
+            return header;
+        }
+        
+        /**
+         * Encodes one Cell as a line.
+         * @param cell the Cell to encode.
+         * @return the line, or null if the Cell is not exported.
+         */
+        public @Nullable String encode(
+                Cell cell
+        ) {
+            return encoder.apply(cell);
+        }
+    }
+    
+    /**
+     * Parses the name of a format, case-insensitively: "tooltip" or "compact".
+     * @param name the name to parse.
+     * @return the named format.
+     * @throws IllegalArgumentException if no format has the given name.
+     */
+    public static ExportFormat parse(
+            String name
+    ) {
+        return valueOf( name.toUpperCase(Locale.ROOT) );
+    }
+    
+    /**
+     * Prepares to export the given Cells in this format.
+     * @param cells the Cells to export, in the order in which they will be written.
+     * @param usePlaceholderForNull as with {@link Cell#export(boolean)}.
+     * @return the Encoding of the given Cells.
+     */
+    public Encoding prepare(
+            Collection<Cell> cells,
+            boolean usePlaceholderForNull
+    ) {
+        if (this == TOOLTIP) {
+            return new Encoding( List.of(), c -> c.export(usePlaceholderForNull) );
+        }
+        //else
+        Map<Integer, Integer> palette = new LinkedHashMap<>();
+        for (Cell cell : cells) {
+            for (Shape shape : cell.exportedShapes(usePlaceholderForNull)) {
+                palette.putIfAbsent(Util.stripAlpha( shape.getColor() ), palette.size() + 1);
+            }
+        }
+        
+        StringBuilder headerBuilder = new StringBuilder("{palette={");
+        for (int color : palette.keySet()) {
+            if (headerBuilder.length() > "{palette={".length()) {
+                headerBuilder.append(',');
+            }
+            headerBuilder.append("0x").append( Integer.toHexString(color).toUpperCase(Locale.ROOT) );
+        }
+        String header = headerBuilder.append("}}").toString();
+        
+        return new Encoding( List.of(header), c -> encodeCompact(c, usePlaceholderForNull, palette) );
+    }
+    
+    /**
+     * Exports the given Cells in this format.
+     * @param cells the Cells to export, in the order in which they are to be written.
+     * @param usePlaceholderForNull as with {@link Cell#export(boolean)}.
+     * @return the lines of the export, header first.
+     */
+    public List<String> export(
+            Collection<Cell> cells,
+            boolean usePlaceholderForNull
+    ) {
+        Encoding encoding = prepare(cells, usePlaceholderForNull);
+        List<String> res = new ArrayList<>( encoding.header() );
+        for (Cell cell : cells) {
+            String line = encoding.encode(cell);
+            if (line != null) {
+                res.add(line);
+            }
+        }
+        return res;
+    }
+    
+    private static @Nullable String encodeCompact(
+            Cell cell,
+            boolean usePlaceholderForNull,
+            Map<Integer, Integer> palette
+    ) {
+        List<Shape> shapes = cell.exportedShapes(usePlaceholderForNull);
+        if (shapes.isEmpty()) {
+            return null;
+        }
+        //else
+        StringBuilder resBuilder = new StringBuilder().append('{')
+                .append( cell.getX() ).append(',').append( cell.getY() );
+        for (Shape shape : shapes) {
+            Integer index = palette.get(Util.stripAlpha( shape.getColor() ));
+            if (index == null) {
+                throw new IllegalArgumentException("Cell was not among those the palette was prepared for");
+            }
+            //else
+            resBuilder.append(',').append( shape.exportCompact(index) );
+        }
+        return resBuilder.append('}').toString();
+    }
+}
@@ -0,0 +1,297 @@
+package org.cb2384.mcimageformatter;
+
+import static org.cb2384.mcimageformatter.Util.CELL_SIZE;
+
+import java.awt.Point;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Runs a conversion as a pipeline of concurrent stages, rather than one stage after another:
+ * <ol>
+ *     <li>decode: loads and resizes the image, then pads it and applies the alpha threshold, in one pass;</li>
+ *     <li>normalize: slices one row of {@link Cell}s at a time from the padded pixels, bottom row first;</li>
+ *     <li>decompose: builds the Cells of each row, in parallel within the row;</li>
+ *     <li>encode: exports each Cell of each row, as {@link Cell#export(boolean)};</li>
+ *     <li>write: writes and flushes each row, on the calling thread.</li>
+ * </ol>
+ * Stages are connected by bounded queues, so that a slow stage holds back the stages before it
+ *  rather than letting finished rows pile up in memory.
+ * The first rows are written while later rows are still being computed,
+ *  so a printer may start on the output before the conversion has finished.
+ * The output is identical to that of {@link CellBlock#export(boolean)} with the default order.
+ */
+public class ExportPipeline {
+    
+    /**
+     * Default number of rows that may wait between any two stages.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+    
+    private static final long POLL_MILLIS = 50;
+    
+    private final @Positive int queueCapacity;
+    
+    private final DecompositionOptions options;
+    
+    /**
+     * Builds a pipeline with the given number of rows that may wait between any two stages.
+     * @param queueCapacity the bound on each queue between stages.
+     */
+    public ExportPipeline(
+            @Positive int queueCapacity
+    ) {
+        this(queueCapacity, DecompositionOptions.EXACT);
+    }
+    
+    /**
+     * Builds a pipeline with the given number of rows that may wait between any two stages,
+     *  which decomposes each {@link Cell} with the given options.
+     * @param queueCapacity the bound on each queue between stages.
+     * @param options how to decompose each Cell into shapes.
+     */
+    public ExportPipeline(
+            @Positive int queueCapacity,
+            DecompositionOptions options
+    ) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        //else
+        this.queueCapacity = queueCapacity;
+        this.options = options;
+    }
+    
+    /**
+     * One item passed between stages; a row with a null payload marks the end of the stream.
+     */
+    private static final class Row<T> {
+        
+        private static final Row<?> END = new Row<>(0, null);
+        
+        private final @NonNegative int yCoord;
+        
+        private final @Nullable T payload;
+        
+        private Row(
+                @NonNegative int yCoord,
+                @Nullable T payload
+        ) {
+            this.yCoord = yCoord;
+            this.payload = payload;
+        }
+        
+        @SuppressWarnings("unchecked")
+        private static <T> Row<T> end() {
+            return (Row<T>) END;
+        }
+    }
+    
+    /**
+     * Shared state of one run, through which a failure in any stage stops all the others.
+     */
+    private static final class Run {
+        
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        
+        private <T> void put(
+                BlockingQueue<Row<T>> queue,
+                Row<T> row
+        ) throws InterruptedException {
+            while (!queue.offer(row, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (failure.get() != null) {
+                    throw new InterruptedException("Pipeline stopped");
+                }
+            }
+        }
+        
+        private <T> Row<T> take(
+                BlockingQueue<Row<T>> queue
+        ) throws InterruptedException {
+            Row<T> row;
+            while ((row = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                if (failure.get() != null) {
+                    throw new InterruptedException("Pipeline stopped");
+                }
+            }
+            return row;
+        }
+        
+        private void fail(
+                Throwable cause
+        ) {
+            failure.compareAndSet(null, cause);
+        }
+    }
+    
+    /**
+     * Converts the given image with the given arguments, writing each exported Cell as one line.
+     * @param args the arguments, as passed to {@link ImageTransformer#processImage};
+     *             the image path is args[0], and the resize arguments are as usual.
+     * @param usePlaceholderForNull as with {@link Cell#export(boolean)}.
+     * @param out where to write the lines; flushed after each row, but not closed.
+     * @throws IOException if the image cannot be read or the output cannot be written.
+     */
+    public void run(
+            @ArrayLen(6) String[] args,
+            boolean usePlaceholderForNull,
+            BufferedWriter out
+    ) throws IOException {
+        BlockingQueue<Row<PaddedPixels>> decoded = new ArrayBlockingQueue<>(1);
+        BlockingQueue<Row<int[]>> normalized = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Row<List<Cell>>> decomposed = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Row<List<String>>> encoded = new ArrayBlockingQueue<>(queueCapacity);
+        Run run = new Run();
+        
+        ExecutorService stages = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = List.of(
+                    stages.submit( () -> stage(run, decoded, () -> decode(run, args, decoded)) ),
+                    stages.submit( () -> stage(run, normalized, () -> normalize(run, decoded, normalized)) ),
+                    stages.submit( () -> stage(run, decomposed,
+                            () -> decompose(run, normalized, decomposed, options)) ),
+                    stages.submit( () -> stage(run, encoded,
+                            () -> encode(run, decomposed, encoded, usePlaceholderForNull)) )
+            );
+            
+            write(run, encoded, out);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (Exception E) {
+            run.fail(E);
+        } finally {
+            stages.shutdownNow();
+        }
+        
+        Throwable cause = run.failure.get();
+        if (cause instanceof IOException IOE) {
+            throw IOE;
+        }
+        //else
+        if (cause instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Pipeline interrupted");
+        }
+        //else
+        if (cause != null) {
+            throw new RuntimeException(cause);
+        }
+    }
+    
+    @FunctionalInterface
+    private interface StageBody {
+        void run() throws Exception;
+    }
+    
+    private static <T> @Nullable Void stage(
+            Run run,
+            BlockingQueue<Row<T>> out,
+            StageBody body
+    ) throws InterruptedException {
+        try {
+            body.run();
+        } catch (Exception E) {
+            run.fail(E);
+        } finally {
+            // Only blocks while the next stage is still draining; gives up once anything has failed
+            run.put(out, Row.end());
+        }
+        return null;
+    }
+    
+    private static void decode(
+            Run run,
+            @ArrayLen(6) String[] args,
+            BlockingQueue<Row<PaddedPixels>> out
+    ) throws IOException, InterruptedException {
+        PaddedPixels pixels = ImageTransformer.preparePixels(args, ImageTransformer.loadImage(args[0]));
+        run.put( out, new Row<>(0, pixels) );
+    }
+    
+    private static void normalize(
+            Run run,
+            BlockingQueue<Row<PaddedPixels>> in,
+            BlockingQueue<Row<int[]>> out
+    ) throws InterruptedException {
+        PaddedPixels pixels = run.take(in).payload;
+        if (pixels == null) {
+            return;
+        }
+        //else
+        int cellsHeight = pixels.getHeight() / CELL_SIZE;
+        for (int y = cellsHeight - 1; y >= 0; y--) {
+            run.put( out, new Row<>(cellsHeight - y, pixels.readRow(y)) );
+        }
+    }
+    
+    private static void decompose(
+            Run run,
+            BlockingQueue<Row<int[]>> in,
+            BlockingQueue<Row<List<Cell>>> out,
+            DecompositionOptions options
+    ) throws InterruptedException {
+        for (Row<int[]> row = run.take(in); row.payload != null; row = run.take(in)) {
+            int[] pixels = row.payload;
+            int width = pixels.length / CELL_SIZE;
+            int yCoord = row.yCoord;
+            List<Cell> cells = IntStream.range(0, width / CELL_SIZE)
+                    .parallel()
+                    .mapToObj(x -> {
+                        int[] cellPixels = new int[CELL_SIZE * CELL_SIZE];
+                        for (int line = 0; line < CELL_SIZE; line++) {
+                            System.arraycopy(pixels, line * width + x * CELL_SIZE, cellPixels, line * CELL_SIZE,
+                                    CELL_SIZE);
+                        }
+                        // Points are defined from 1, not 0.
+                        return new Cell( new Point(x + 1, yCoord), cellPixels, options ).prepareShapes();
+                    })
+                    .toList();
+            run.put( out, new Row<>(yCoord, cells) );
+        }
+    }
+    
+    private static void encode(
+            Run run,
+            BlockingQueue<Row<List<Cell>>> in,
+            BlockingQueue<Row<List<String>>> out,
+            boolean usePlaceholderForNull
+    ) throws InterruptedException {
+        for (Row<List<Cell>> row = run.take(in); row.payload != null; row = run.take(in)) {
+            List<String> lines = row.payload.stream()
+                    .map(c -> c.export(usePlaceholderForNull))
+                    .filter(Objects::nonNull)
+                    .toList();
+            run.put( out, new Row<>(row.yCoord, lines) );
+        }
+    }
+    
+    private static void write(
+            Run run,
+            BlockingQueue<Row<List<String>>> in,
+            BufferedWriter out
+    ) throws IOException, InterruptedException {
+        for (Row<List<String>> row = run.take(in); row.payload != null; row = run.take(in)) {
+            for (String line : row.payload) {
+                out.write(line);
+                out.newLine();
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,468 @@
+package org.cb2384.mcimageformatter;
+
+import static org.cb2384.mcimageformatter.Util.CELL_SIZE;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.IntFunction;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Converts every frame of an animated or multi-image file, such as a GIF, or every image of a folder,
+ *  taken in order of name, into a {@link CellBlock} of its own, each written to its own output.
+ * Frames are read one after another with an {@link ImageReader}; GIF frames are drawn onto the logical screen
+ *  as the file describes, so that each frame is the whole picture as it is shown, not just the part that changed.
+ * Each frame is resized and padded as {@link ImageTransformer#processImage} would.
+ * A tile of a frame whose pixels are the same as those of the same tile of the frame before shares that frame's
+ *  {@link Cell}, so is only decomposed once; Cells are decomposed, and frames exported,
+ *  on a pool of worker threads, while later frames are still being read.
+ * The time taken by each frame, and how many of its Cells were shared, are reported as {@link FrameStats}.
+ */
+public class FrameSequenceConverter {
+    
+    private static final String GIF_IMAGE_METADATA = "javax_imageio_gif_image_1.0";
+    
+    private static final String GIF_STREAM_METADATA = "javax_imageio_gif_stream_1.0";
+    
+    private final @ArrayLen(6) String[] args;
+    
+    private final boolean usePlaceholderForNull;
+    
+    private final DecompositionOptions options;
+    
+    private final ExportFormat format;
+    
+    private final @Nullable PrintOrder order;
+    
+    private final @Positive int workers;
+    
+    /**
+     * How one frame was converted.
+     */
+    public static final class FrameStats {
+        
+        private final @NonNegative int index;
+        
+        private final @NonNegative int cells;
+        
+        private final @NonNegative int sharedCells;
+        
+        private final @NonNegative long nanos;
+        
+        private FrameStats(
+                @NonNegative int index,
+                @NonNegative int cells,
+                @NonNegative int sharedCells,
+                @NonNegative long nanos
+        ) {
+            this.index = index;
+            this.cells = cells;
+            this.sharedCells = sharedCells;
+            this.nanos = nanos;
+        }
+        
+        /**
+         * Gets the index of the frame, from 0.
+         * @return the index of the frame.
+         */
+        public @NonNegative int getIndex() {
+            return index;
+        }
+        
+        /**
+         * Gets the number of Cells of the frame.
+         * @return the number of Cells.
+         */
+        public @NonNegative int getCells() {
+            return cells;
+        }
+        
+        /**
+         * Gets the number of Cells of the frame that were shared with the frame before, rather than decomposed.
+         * @return the number of shared Cells.
+         */
+        public @NonNegative int getSharedCells() {
+            return sharedCells;
+        }
+        
+        /**
+         * Gets the time taken to decompose and export the frame, on its worker thread.
+         * @return the time taken, in nanoseconds.
+         */
+        public @NonNegative long getNanos() {
+            return nanos;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "frame %d: %d cells, %d shared, %.1f ms",
+                    index, cells, sharedCells, nanos / 1e6);
+        }
+    }
+    
+    /**
+     * Builds a converter.
+     * @param args the arguments, as passed to {@link ImageTransformer#processImage}; the resize arguments
+     *             apply to every frame.
+     * @param usePlaceholderForNull as with {@link Cell#export(boolean)}.
+     * @param options how to decompose each Cell into shapes.
+     * @param format the format of the outputs.
+     * @param order the order in which to write the Cells of each frame, or null for the default order.
+     * @param workers the number of frames that may be converted at once.
+     */
+    public FrameSequenceConverter(
+            @ArrayLen(6) String[] args,
+            boolean usePlaceholderForNull,
+            DecompositionOptions options,
+            ExportFormat format,
+            @Nullable PrintOrder order,
+            @Positive int workers
+    ) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Workers must be positive");
+        }
+        //else
+        this.args = args.clone();
+        this.usePlaceholderForNull = usePlaceholderForNull;
+        this.options = options;
+        this.format = format;
+        this.order = order;
+        this.workers = workers;
+    }
+    
+    /**
+     * Converts every frame of the given input.
+     * @param input a file holding one or more images, or a folder of images.
+     * @param outputFor gives the path to which to write each frame, by its index from 0.
+     * @return how each frame was converted, in order of frame.
+     * @throws IOException if the input cannot be read, or an output cannot be written.
+     */
+    public List<FrameStats> convert(
+            Path input,
+            IntFunction<Path> outputFor
+    ) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        // At most two frames per worker are held in memory, waiting or being converted
+        Semaphore inFlight = new Semaphore(workers * 2);
+        List<Future<FrameStats>> frames = new ArrayList<>();
+        try (FrameReader reader = Files.isDirectory(input) ?
+                new FolderFrameReader(input) :
+                new FileFrameReader(input)) {
+            int @Nullable [][] previousTiles = null;
+            List<Cell> previousCells = List.of();
+            int previousCellsWidth = 0;
+            int previousCellsHeight = 0;
+            for (BufferedImage frame = reader.next(); frame != null; frame = reader.next()) {
+                PaddedPixels prepared = ImageTransformer.preparePixels(args, frame);
+                int cellsHeight = prepared.getHeight() / CELL_SIZE;
+                int cellsWidth = prepared.getWidth() / CELL_SIZE;
+                // Tiles are compared by index, so only between frames of the same grid
+                if (cellsWidth != previousCellsWidth || cellsHeight != previousCellsHeight) {
+                    previousTiles = null;
+                }
+                
+                int[][] tiles = new int[cellsHeight * cellsWidth][];
+                List<Cell> cells = new ArrayList<>(tiles.length);
+                int shared = 0;
+                for (int y = 0; y < cellsHeight; y++) {
+                    for (int x = 0; x < cellsWidth; x++) {
+                        int i = y * cellsWidth + x;
+                        tiles[i] = prepared.readCell(x, y);
+                        if (previousTiles != null && Arrays.equals(tiles[i], previousTiles[i])) {
+                            // Not yet decomposed, perhaps; a Cell is decomposed once, whichever frame gets to it
+                            cells.add( previousCells.get(i) );
+                            shared++;
+                        } else {
+                            // Points are defined from 1, not 0.
+                            cells.add( new Cell(new Point(x + 1, cellsHeight - y), tiles[i], options) );
+                        }
+                    }
+                }
+                previousTiles = tiles;
+                previousCells = cells;
+                previousCellsWidth = cellsWidth;
+                previousCellsHeight = cellsHeight;
+                
+                int index = frames.size();
+                int sharedCells = shared;
+                inFlight.acquire();
+                frames.add( pool.submit(() -> {
+                    try {
+                        return convertFrame(index, prepared, cells, sharedCells, outputFor.apply(index));
+                    } finally {
+                        inFlight.release();
+                    }
+                }) );
+            }
+            
+            List<FrameStats> res = new ArrayList<>( frames.size() );
+            for (Future<FrameStats> frame : frames) {
+                res.add( frame.get() );
+            }
+            return res;
+        } catch (InterruptedException IE) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Conversion interrupted");
+        } catch (ExecutionException EE) {
+            if (EE.getCause() instanceof IOException IOE) {
+                throw IOE;
+            }
+            //else
+            throw new RuntimeException(EE.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    private FrameStats convertFrame(
+            @NonNegative int index,
+            PaddedPixels prepared,
+            List<Cell> cells,
+            @NonNegative int sharedCells,
+            Path output
+    ) throws IOException {
+        long start = System.nanoTime();
+        for (Cell cell : cells) {
+            cell.prepareShapes();
+        }
+        CellBlock block = CellBlock.fromCells(prepared, cells);
+        List<Cell> arranged = (order == null) ?
+                List.copyOf( block.seeCells() ) :
+                order.arrange( block.seeCells() );
+        try (BufferedWriter bw = Files.newBufferedWriter(output)) {
+            Main.write(format.export(arranged, usePlaceholderForNull), bw);
+        }
+        return new FrameStats(index, cells.size(), sharedCells, System.nanoTime() - start);
+    }
+    
+    /**
+     * Gets the output for one frame: the given output, with "_" and the frame number, from 1,
+     *  before its extension.
+     * @param output the output of the whole conversion.
+     * @param index the index of the frame, from 0.
+     * @return the output of the frame.
+     */
+    static Path frameOutput(
+            Path output,
+            @NonNegative int index
+    ) {
+        String name = output.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String frameName = (dot > 0) ?
+                name.substring(0, dot) + '_' + (index + 1) + name.substring(dot) :
+                name + '_' + (index + 1);
+        return output.resolveSibling(frameName);
+    }
+    
+    /**
+     * A source of frames, read one at a time.
+     */
+    private interface FrameReader
+            extends Closeable {
+        
+        /**
+         * Reads the next frame.
+         * @return the next frame, or null if there are no more.
+         * @throws IOException if the frame cannot be read.
+         */
+        @Nullable BufferedImage next() throws IOException;
+    }
+    
+    /**
+     * Reads the images of a folder, in order of name, skipping files that are not images.
+     */
+    private static final class FolderFrameReader
+            implements FrameReader {
+        
+        private final Iterator<Path> files;
+        
+        private FolderFrameReader(
+                Path folder
+        ) throws IOException {
+            List<Path> list = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder, Files::isRegularFile)) {
+                stream.forEach(list::add);
+            }
+            list.sort(null);
+            files = list.iterator();
+        }
+        
+        @Override
+        public @Nullable BufferedImage next() throws IOException {
+            while (files.hasNext()) {
+                BufferedImage image = ImageIO.read( files.next().toFile() );
+                if (image != null) {
+                    return image;
+                }
+            }
+            return null;
+        }
+        
+        @Override
+        public void close() {}
+    }
+    
+    /**
+     * Reads the images of one file; those of a GIF are drawn onto its logical screen,
+     *  following the disposal method of each.
+     */
+    private static final class FileFrameReader
+            implements FrameReader {
+        
+        private final ImageInputStream stream;
+        
+        private final ImageReader reader;
+        
+        private final boolean gif;
+        
+        private @Nullable BufferedImage canvas;
+        
+        private @NonNegative int next;
+        
+        private FileFrameReader(
+                Path file
+        ) throws IOException {
+            stream = ImageIO.createImageInputStream( file.toFile() );
+            if (stream == null) {
+                throw new IOException("Cannot read " + file);
+            }
+            //else
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+            if (!readers.hasNext()) {
+                stream.close();
+                throw new IOException("No reader for " + file);
+            }
+            //else
+            reader = readers.next();
+            reader.setInput(stream, false, false);
+            gif = reader.getFormatName().equalsIgnoreCase("gif");
+        }
+        
+        @Override
+        public @Nullable BufferedImage next() throws IOException {
+            BufferedImage frame;
+            try {
+                frame = reader.read(next);
+            } catch (IndexOutOfBoundsException end) {
+                return null;
+            }
+            //else
+            if (!gif) {
+                next++;
+                return frame;
+            }
+            //else
+            IIOMetadata metadata = reader.getImageMetadata(next);
+            if (canvas == null) {
+                canvas = newCanvas(frame);
+            }
+            next++;
+            
+            Node imageMetadata = metadata.getAsTree(GIF_IMAGE_METADATA);
+            int left = intAttribute(imageMetadata, "ImageDescriptor", "imageLeftPosition");
+            int top = intAttribute(imageMetadata, "ImageDescriptor", "imageTopPosition");
+            String disposal = attribute(imageMetadata, "GraphicControlExtension", "disposalMethod");
+            
+            BufferedImage before = "restoreToPrevious".equals(disposal) ?
+                    Util.cloneImage(canvas) :
+                    null;
+            Graphics2D g = canvas.createGraphics();
+            try {
+                g.drawImage(frame, left, top, null);
+                BufferedImage res = Util.cloneImage(canvas);
+                if ("restoreToBackgroundColor".equals(disposal)) {
+                    g.setComposite(AlphaComposite.Clear);
+                    g.fillRect(left, top, frame.getWidth(), frame.getHeight());
+                } else if (before != null) {
+                    canvas = before;
+                }
+                return res;
+            } finally {
+                g.dispose();
+            }
+        }
+        
+        /**
+         * Makes the transparent logical screen of the GIF, or one the size of its first frame if it has none.
+         */
+        private BufferedImage newCanvas(
+                BufferedImage first
+        ) throws IOException {
+            int width = first.getWidth();
+            int height = first.getHeight();
+            IIOMetadata streamMetadata = reader.getStreamMetadata();
+            if (streamMetadata != null) {
+                Node tree = streamMetadata.getAsTree(GIF_STREAM_METADATA);
+                width = Math.max( width, intAttribute(tree, "LogicalScreenDescriptor", "logicalScreenWidth") );
+                height = Math.max( height, intAttribute(tree, "LogicalScreenDescriptor", "logicalScreenHeight") );
+            }
+            return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            reader.dispose();
+            stream.close();
+        }
+    }
+    
+    private static @Nullable String attribute(
+            Node tree,
+            String nodeName,
+            String attributeName
+    ) {
+        for (Node child = tree.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeName().equals(nodeName)) {
+                NamedNodeMap attributes = child.getAttributes();
+                Node attribute = (attributes == null) ?
+                        null :
+                        attributes.getNamedItem(attributeName);
+                return (attribute == null) ?
+                        null :
+                        attribute.getNodeValue();
+            }
+        }
+        return null;
+    }
+    
+    private static int intAttribute(
+            Node tree,
+            String nodeName,
+            String attributeName
+    ) {
+        String value = attribute(tree, nodeName, attributeName);
+        return (value == null) ?
+                0 :
+                Integer.parseInt(value);
+    }
+}
@@ -0,0 +1,405 @@
+package org.cb2384.mcimageformatter;
+
+import static org.cb2384.mcimageformatter.Util.CELL_SIZE;
+
+import java.awt.Point;
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches a folder and converts each image in it whenever it is added or changed,
+ *  writing the output next to the image, with the same name and the extension {@value #OUTPUT_SUFFIX}.
+ * Bursts of events for one file, as while it is still being copied in, are debounced into a single conversion,
+ *  which runs on a bounded pool of worker threads; files that do not fit in its queue wait for the next check.
+ * The daemon keeps a digest of every {@link Cell} of each image it has converted, and on the next conversion
+ *  of the same image reuses each Cell whose pixels are unchanged, so only changed Cells are decomposed again.
+ * On start, every image without an up-to-date output is converted.
+ * Each conversion, and every so often the throughput and backlog, are logged.
+ */
+public class HotFolderDaemon
+        implements Closeable {
+    
+    /**
+     * Default time that a file must go without events before it is converted.
+     */
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 500;
+    
+    /**
+     * The extension of the output written next to each image.
+     */
+    public static final String OUTPUT_SUFFIX = ".lc3p";
+    
+    private static final Set<String> IMAGE_SUFFIXES = Set.of(".png", ".gif", ".bmp", ".jpg", ".jpeg");
+    
+    private static final long METRICS_INTERVAL_MILLIS = 10_000;
+    
+    private static final long POLL_MILLIS = 100;
+    
+    private static final Logger LOGGER = LoggerFactory.getLogger(HotFolderDaemon.class);
+    
+    private final Path folder;
+    
+    private final @ArrayLen(6) String[] args;
+    
+    private final boolean usePlaceholderForNull;
+    
+    private final DecompositionOptions options;
+    
+    private final ExportFormat format;
+    
+    private final @NonNegative long debounceMillis;
+    
+    private final WatchService watcher;
+    
+    private final ThreadPoolExecutor converters;
+    
+    /**
+     * The time at which each file with recent events is due for conversion; used only by the watching thread.
+     */
+    private final Map<Path, Long> pending = new HashMap<>();
+    
+    private final Set<Path> running = ConcurrentHashMap.newKeySet();
+    
+    private final Map<Path, Map<Point, CellState>> previous = new ConcurrentHashMap<>();
+    
+    private final AtomicLong convertedFiles = new AtomicLong();
+    
+    private final AtomicLong convertedCells = new AtomicLong();
+    
+    private final AtomicLong reusedCells = new AtomicLong();
+    
+    private final AtomicLong failedFiles = new AtomicLong();
+    
+    /**
+     * A Cell of the last conversion of a file, and the digest of the pixels it was built from.
+     */
+    private static final class CellState {
+        
+        private final byte[] digest;
+        
+        private final Cell cell;
+        
+        private CellState(
+                byte[] digest,
+                Cell cell
+        ) {
+            this.digest = digest;
+            this.cell = cell;
+        }
+    }
+    
+    /**
+     * Builds a daemon for the given folder; it starts watching on {@link #run()}.
+     * @param folder the folder to watch.
+     * @param args the arguments, as passed to {@link ImageTransformer#processImage};
+     *             args[0] is replaced by each image, and the resize arguments apply to every image.
+     * @param usePlaceholderForNull as with {@link Cell#export(boolean)}.
+     * @param options how to decompose each Cell into shapes.
+     * @param format the format of the outputs.
+     * @param workers the number of images that may be converted at once.
+     * @param debounceMillis the time that a file must go without events before it is converted.
+     * @throws IOException if the folder cannot be watched.
+     */
+    public HotFolderDaemon(
+            Path folder,
+            @ArrayLen(6) String[] args,
+            boolean usePlaceholderForNull,
+            DecompositionOptions options,
+            ExportFormat format,
+            @Positive int workers,
+            @NonNegative long debounceMillis
+    ) throws IOException {
+        if (workers < 1 || debounceMillis < 0) {
+            throw new IllegalArgumentException("Workers must be positive, and debounce non-negative");
+        }
+        //else
+        this.folder = folder;
+        this.args = args.clone();
+        this.usePlaceholderForNull = usePlaceholderForNull;
+        this.options = options;
+        this.format = format;
+        this.debounceMillis = debounceMillis;
+        
+        watcher = folder.getFileSystem().newWatchService();
+        folder.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        converters = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workers * 4));
+    }
+    
+    /**
+     * Watches the folder until this daemon is closed or the calling thread is interrupted.
+     * @throws IOException if the folder cannot be listed.
+     */
+    public void run() throws IOException {
+        LOGGER.info("Watching {}", folder);
+        scheduleStale();
+        long nextMetrics = System.currentTimeMillis() + METRICS_INTERVAL_MILLIS;
+        long lastFiles = 0;
+        long lastCells = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    handle(key);
+                }
+                submitDue();
+                
+                long now = System.currentTimeMillis();
+                if (now >= nextMetrics) {
+                    long files = convertedFiles.get();
+                    long cells = convertedCells.get();
+                    logMetrics(files - lastFiles, cells - lastCells,
+                            METRICS_INTERVAL_MILLIS + (now - nextMetrics));
+                    lastFiles = files;
+                    lastCells = cells;
+                    nextMetrics = now + METRICS_INTERVAL_MILLIS;
+                }
+            }
+        } catch (InterruptedException IE) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException ignored) {
+            // Closed; stop watching
+        } finally {
+            converters.shutdown();
+        }
+    }
+    
+    /**
+     * Stops watching; conversions already running finish, but queued ones are dropped.
+     * @throws IOException if the watch service cannot be closed.
+     */
+    public void close() throws IOException {
+        converters.shutdownNow();
+        watcher.close();
+    }
+    
+    private void scheduleStale() throws IOException {
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> images = Files.newDirectoryStream(folder, p -> isImage(p.getFileName()))) {
+            for (Path image : images) {
+                Path output = outputFor(image);
+                if (!Files.exists(output)
+                        || Files.getLastModifiedTime(output).compareTo(Files.getLastModifiedTime(image)) < 0) {
+                    pending.put(image, now);
+                }
+            }
+        }
+    }
+    
+    private void handle(
+            WatchKey key
+    ) throws IOException {
+        long due = System.currentTimeMillis() + debounceMillis;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                LOGGER.warn("Missed events in {}; rescanning", folder);
+                scheduleStale();
+                continue;
+            }
+            //else
+            Path name = (Path) event.context();
+            if (!isImage(name)) {
+                continue;
+            }
+            //else
+            Path image = folder.resolve(name);
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                pending.remove(image);
+                previous.remove(image);
+            } else {
+                pending.put(image, due);
+            }
+        }
+        key.reset();
+    }
+    
+    /**
+     * Hands every file that is due, and not already being converted, to the workers, as far as their queue allows.
+     */
+    private void submitDue() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, Long>> entries = pending.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Path, Long> entry = entries.next();
+            Path image = entry.getKey();
+            if (entry.getValue() > now || !running.add(image)) {
+                continue;
+            }
+            //else
+            try {
+                converters.execute(() -> {
+                    try {
+                        convert(image);
+                    } finally {
+                        running.remove(image);
+                    }
+                });
+                entries.remove();
+            } catch (RejectedExecutionException full) {
+                running.remove(image);
+                return;
+            }
+        }
+    }
+    
+    private void convert(
+            Path image
+    ) {
+        long start = System.nanoTime();
+        try {
+            BufferedImage loaded = ImageTransformer.loadImage( image.toString() );
+            if (loaded == null) {
+                // Not an image, or not yet completely written; a later event will bring it back
+                LOGGER.warn("Could not decode {}", image);
+                failedFiles.incrementAndGet();
+                return;
+            }
+            //else
+            String[] fileArgs = args.clone();
+            fileArgs[0] = image.toString();
+            PaddedPixels prepared = ImageTransformer.preparePixels(fileArgs, loaded);
+            
+            Map<Point, CellState> before = previous.getOrDefault(image, Map.of());
+            Map<Point, CellState> after = new HashMap<>();
+            int reused = decompose(prepared, before, after);
+            previous.put(image, after);
+            
+            List<Cell> cells = List.copyOf(Util.copyAsNavSet( after.values().stream().map(s -> s.cell).toList() ));
+            List<String> lines = format.export(cells, usePlaceholderForNull);
+            Path output = outputFor(image);
+            Path temp = output.resolveSibling("." + output.getFileName() + ".tmp");
+            try (BufferedWriter bw = Files.newBufferedWriter(temp)) {
+                Main.write(lines, bw);
+            }
+            Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            
+            convertedFiles.incrementAndGet();
+            convertedCells.addAndGet(after.size());
+            reusedCells.addAndGet(reused);
+            LOGGER.info("Converted {}: {} cells, {} reused, in {} ms", image.getFileName(), after.size(), reused,
+                    (System.nanoTime() - start) / 1_000_000);
+        } catch (IOException | RuntimeException E) {
+            failedFiles.incrementAndGet();
+            LOGGER.error("Could not convert {}", image, E);
+        }
+    }
+    
+    /**
+     * Builds the Cells of the given padded image, reusing those of before whose pixels have not changed.
+     * @return the number of Cells reused.
+     */
+    private @NonNegative int decompose(
+            PaddedPixels prepared,
+            Map<Point, CellState> before,
+            Map<Point, CellState> after
+    ) {
+        MessageDigest sha;
+        try {
+            sha = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException NSAE) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(NSAE);
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(CELL_SIZE * CELL_SIZE * Integer.BYTES);
+        
+        int cellsHeight = prepared.getHeight() / CELL_SIZE;
+        int cellsWidth = prepared.getWidth() / CELL_SIZE;
+        int reused = 0;
+        for (int y = 0; y < cellsHeight; y++) {
+            for (int x = 0; x < cellsWidth; x++) {
+                int[] pixels = prepared.readCell(x, y);
+                bytes.clear();
+                bytes.asIntBuffer().put(pixels);
+                byte[] digest = sha.digest( bytes.array() );
+                
+                // Points are defined from 1, not 0.
+                Point point = new Point(x + 1, cellsHeight - y);
+                CellState old = before.get(point);
+                Cell cell;
+                if (old != null && Arrays.equals(old.digest, digest)) {
+                    cell = old.cell;
+                    reused++;
+                } else {
+                    cell = new Cell(point, pixels, options);
+                }
+                after.put( point, new CellState(digest, cell) );
+            }
+        }
+        return reused;
+    }
+    
+    private void logMetrics(
+            @NonNegative long files,
+            @NonNegative long cells,
+            @Positive long elapsedMillis
+    ) {
+        if (files == 0 && pending.isEmpty() && running.isEmpty()) {
+            return;
+        }
+        //else
+        LOGGER.info(String.format(Locale.ROOT,
+                "%.2f files/s, %.0f cells/s; %d converted, %d cells reused, %d failed in total; "
+                        + "backlog: %d waiting, %d queued, %d converting",
+                files * 1000.0 / elapsedMillis, cells * 1000.0 / elapsedMillis,
+                convertedFiles.get(), reusedCells.get(), failedFiles.get(),
+                pending.size(), converters.getQueue().size(), converters.getActiveCount()));
+    }
+    
+    private static boolean isImage(
+            @Nullable Path name
+    ) {
+        if (name == null) {
+            return false;
+        }
+        //else
+        String fileName = name.toString().toLowerCase(Locale.ROOT);
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 && IMAGE_SUFFIXES.contains( fileName.substring(dot) );
+    }
+    
+    /**
+     * Gets the output path of the given image: the same name, with {@link #OUTPUT_SUFFIX} for its extension.
+     */
+    static Path outputFor(
+            Path image
+    ) {
+        String name = image.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return image.resolveSibling(((dot > 0) ? name.substring(0, dot) : name) + OUTPUT_SUFFIX);
+    }
+}
@@ -0,0 +1,91 @@
+package org.cb2384.mcimageformatter;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * An {@link UploadEndpoint} that speaks a minimal HTTP protocol, relative to a base URI:
+ * <ul>
+ *     <li>{@code POST chunks?index=<i>} with the chunk as the body; the response body is the chunk id.</li>
+ *     <li>{@code POST manifest?bytes=<n>} with one chunk id per line as the body;
+ *         the response body is the id of the upload.</li>
+ * </ul>
+ * Any 2xx status is success. Other statuses and network failures are reported as {@link IOException}s,
+ *  so that they are retried.
+ */
+public class HttpUploadEndpoint
+        implements UploadEndpoint {
+    
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+    
+    private final URI base;
+    
+    private final HttpClient client;
+    
+    /**
+     * Builds an endpoint that uploads relative to the given base URI.
+     * @param base the base URI; a trailing '/' is added if missing.
+     */
+    public HttpUploadEndpoint(
+            URI base
+    ) {
+        String baseString = base.toString();
+        this.base = baseString.endsWith("/") ?
+                base :
+                URI.create(baseString + "/");
+        client = HttpClient.newBuilder()
+                .connectTimeout(TIMEOUT)
+                .build();
+    }
+    
+    public String uploadChunk(
+            @NonNegative int index,
+            byte[] chunk
+    ) throws IOException {
+        return post("chunks?index=" + index, HttpRequest.BodyPublishers.ofByteArray(chunk));
+    }
+    
+    public String commit(
+            List<String> chunkIds,
+            @NonNegative long totalBytes
+    ) throws IOException {
+        String body = String.join("\n", chunkIds);
+        return post("manifest?bytes=" + totalBytes, HttpRequest.BodyPublishers.ofString(body));
+    }
+    
+    private String post(
+            String path,
+            HttpRequest.BodyPublisher body
+    ) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder( base.resolve(path) )
+                .timeout(TIMEOUT)
+                .header("Content-Type", "application/octet-stream")
+                .POST(body)
+                .build();
+        HttpResponse<String> response;
+        try {
+            response = client.send( request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8) );
+        } catch (InterruptedException IE) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        }
+        
+        int status = response.statusCode();
+        if (status / 100 != 2) {
+            throw new IOException("Upload to " + request.uri() + " failed with status " + status);
+        }
+        //else
+        return response.body().strip();
+    }
+}
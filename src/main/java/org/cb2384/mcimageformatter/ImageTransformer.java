@@ -1,10 +1,5 @@
 package org.cb2384.mcimageformatter;
 
-import static org.cb2384.mcimageformatter.Util.CELL_SIZE;
-import static org.cb2384.mcimageformatter.Util.CELL_SIZE_MINUS_ONE;
-
-import java.awt.Color;
-import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -36,76 +31,80 @@ class ImageTransformer {
             @ArrayLen(6) String[] args,
             BufferedImage image
     ) {
-        
-        boolean changeWidth = false;
-        int widthArg = 0;
-        if (args[3] != null) {
-            widthArg = Integer.parseInt(args[3]);
-            if (widthArg > 0) {
-                changeWidth = true;
-            }
-        }
-        
-        boolean changeHeight = false;
-        int heightArg = 0;
-        if (args[4] != null) {
-            heightArg = Integer.parseInt(args[4]);
-            if (heightArg > 0) {
-                changeHeight = true;
-            }
-        }
-        return (changeHeight || changeWidth) ?
-                new CellBlock(resizeImage(image, widthArg, heightArg, args[5])) :
-                CellBlock.build(image);
+        return processImage(args, image, DecompositionOptions.EXACT);
     }
     
-    static BufferedImage padImageIfNeeded(
+    static CellBlock processImage(
+            @ArrayLen(6) String[] args,
+            BufferedImage image,
+            DecompositionOptions options
+    ) {
+        return CellBlock.build( preparePixels(args, image), options );
+    }
+    
+    /**
+     * Resizes, pads, and applies the alpha threshold to the given image as {@link #processImage} would,
+     *  without building its {@link CellBlock}.
+     * @param args the arguments, as passed to {@link #processImage}.
+     * @param image the image to prepare.
+     * @return the pixels of the image, resized if requested, and padded to a multiple of {@link Util#CELL_SIZE}.
+     */
+    static PaddedPixels preparePixels(
+            @ArrayLen(6) String[] args,
             BufferedImage image
     ) {
-        int height = image.getHeight();
-        int width = image.getWidth();
-        
-        int heightOver = height % CELL_SIZE;
-        int widthOver = width % CELL_SIZE;
-        
-        boolean badHeight = heightOver != 0;
-        boolean badWidth = widthOver != 0;
-        
-        return (badHeight || badWidth) ?
-                growImage(image, height, width, badHeight, badWidth, heightOver, widthOver) :
+        String[] resize = describeResize(args);
+        int widthArg = Integer.parseInt(resize[0]);
+        int heightArg = Integer.parseInt(resize[1]);
+        Scalr.Method method = (widthArg > 0 || heightArg > 0) ?
+                parseMethod(args[5]) :
+                Scalr.Method.AUTOMATIC;
+        return preparePixels(widthArg, heightArg, method, image);
+    }
+    
+    /**
+     * Resizes, pads, and applies the alpha threshold to the given image,
+     *  with the resize given as values rather than as arguments to parse.
+     * The resized image, if any, is the only image made on the way; it is padded and masked in one pass,
+     *  straight into the result, as {@link PaddedPixels#of}.
+     * @param width the width to resize to, or 0 to follow the height.
+     * @param height the height to resize to, or 0 to follow the width.
+     * @param method the resize method; not used if both the width and height are 0.
+     * @param image the image to prepare.
+     * @return the pixels of the image, resized if requested, and padded to a multiple of {@link Util#CELL_SIZE}.
+     */
+    static PaddedPixels preparePixels(
+            @NonNegative int width,
+            @NonNegative int height,
+            Scalr.Method method,
+            BufferedImage image
+    ) {
+        BufferedImage resized = (width > 0 || height > 0) ?
+                resizeImage(image, width, height, method) :
                 image;
+        return PaddedPixels.of(resized);
     }
     
-    static BufferedImage growImage(
-            BufferedImage image,
-            @Positive int height,
-            @Positive int width,
-            boolean changeHeight,
-            boolean changeWidth,
-            @IntRange(from = 0, to = CELL_SIZE_MINUS_ONE) int heightOver,
-            @IntRange(from = 0, to = CELL_SIZE_MINUS_ONE) int widthOver
+    /**
+     * Normalizes the resize arguments of the given args, as read by {@link #processImage},
+     *  into a stable form, so that two argument arrays that produce the same output also describe the same.
+     * @param args the arguments, as passed to {@link #processImage}.
+     * @return the width, height, and resize method, in that order;
+     *         a size that will not be changed is "0", and the method is empty when there is no resize.
+     */
+    static String[] describeResize(
+            @ArrayLen(6) String[] args
     ) {
-        int heightUnder = (changeHeight) ?
-                CELL_SIZE - heightOver :
+        int widthArg = (args[3] != null) ?
+                Math.max(Integer.parseInt(args[3]), 0) :
                 0;
-        int newHeight = height + heightUnder;
-        int widthUnder = (changeWidth) ?
-                CELL_SIZE - widthOver :
+        int heightArg = (args[4] != null) ?
+                Math.max(Integer.parseInt(args[4]), 0) :
                 0;
-        int newWidth = width + widthUnder;
-        
-        BufferedImage res = new BufferedImage(newWidth, newHeight, image.getType());
-        Graphics graphics = res.getGraphics();
-        
-        graphics.setColor( new Color(0, true) );
-        graphics.fillRect(0, 0, newWidth, newHeight);
-        
-        int minX = widthUnder / 2;
-        int minY = newHeight - height - (heightUnder / 2);
-        
-        graphics.drawImage(image, minX, minY, null);
-        graphics.dispose();
-        return res;
+        String method = (widthArg > 0 || heightArg > 0) ?
+                parseMethod(args[5]).name() :
+                "";
+        return new String[]{Integer.toString(widthArg), Integer.toString(heightArg), method};
     }
     
     private static Scalr.Mode chooseMode(
@@ -141,12 +140,10 @@ class ImageTransformer {
             BufferedImage image,
             int widthArg,
             int heightArg,
-            @Nullable String resizeAlgo
+            Scalr.Method scaleMethod
     ) {
         Scalr.Mode scaleMode = chooseMode(widthArg, heightArg);
-        Scalr.Method scaleMethod = parseMethod(resizeAlgo);
-        BufferedImage resImage = Scalr.resize(image, scaleMethod, scaleMode, widthArg, heightArg);
-        return padImageIfNeeded(resImage);
+        return Scalr.resize(image, scaleMethod, scaleMode, widthArg, heightArg);
     }
     
 }
@@ -1,13 +1,21 @@
 package org.cb2384.mcimageformatter;
 
-import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
 import java.util.Set;
+import java.util.zip.Deflater;
 
 import org.checkerframework.checker.index.qual.*;
 import org.checkerframework.checker.nullness.qual.*;
@@ -20,9 +28,131 @@ import org.slf4j.LoggerFactory;
 // click the <icon src="AllIcons.Actions.Execute"/> icon in the gutter.
 public class Main {
     
+    private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
+    
     private static final String DEFAULT_OUTPUT_NAME = "MCIFout.lc3p";
     
-    private static BufferedWriter prepareFile(
+    /**
+     * System property naming the directory of the persistent {@link ExportCache}; caching is off if unset.
+     */
+    static final String CACHE_DIR_PROPERTY = "mcif.cacheDir";
+    
+    /**
+     * System property bounding the size of the persistent {@link ExportCache}, in bytes.
+     */
+    static final String CACHE_MAX_BYTES_PROPERTY = "mcif.cacheMaxBytes";
+    
+    /**
+     * System property naming the {@link PrintOrder} of the output, as {@link PrintOrder#parse},
+     *  or "cheapest" for the built-in order that {@link PrintCostModel#DEFAULT} estimates to be fastest.
+     */
+    static final String PRINT_ORDER_PROPERTY = "mcif.printOrder";
+    
+    private static final String CHEAPEST_ORDER = "cheapest";
+    
+    /**
+     * System property that, when true, runs the conversion as an {@link ExportPipeline},
+     *  so that rows are written as soon as they are ready. Only the default print order is pipelined.
+     */
+    static final String PIPELINE_PROPERTY = "mcif.pipeline";
+    
+    /**
+     * System property that, when true, encodes the output with a {@link ParallelExportEncoder}
+     *  rather than one cell after another.
+     */
+    static final String PARALLEL_ENCODE_PROPERTY = "mcif.parallelEncode";
+    
+    /**
+     * System property holding the base URI of an {@link HttpUploadEndpoint} to upload the output to,
+     *  in addition to writing it to a file; the id of the upload is printed to standard output.
+     */
+    static final String UPLOAD_URL_PROPERTY = "mcif.uploadUrl";
+    
+    /**
+     * System property giving the size, as "WIDTHxHEIGHT", of an input that is a file of raw RGBA pixels;
+     *  such an input is memory-mapped as an {@link OffHeapPixelSource} rather than decoded onto the heap,
+     *  and cannot be resized.
+     */
+    static final String RAW_SIZE_PROPERTY = "mcif.rawSize";
+    
+    /**
+     * System property giving the greatest CIE76 &Delta;E between colors merged into one shape,
+     *  as {@link DecompositionOptions#withColorTolerance}; only equal colors are merged if unset.
+     */
+    static final String COLOR_TOLERANCE_PROPERTY = "mcif.colorTolerance";
+    
+    /**
+     * System property naming the {@link DecompositionOptions.Representative} color of merged shapes,
+     *  "first" (the default) or "mean".
+     */
+    static final String COLOR_REPRESENTATIVE_PROPERTY = "mcif.colorRepresentative";
+    
+    /**
+     * System property giving the greatest number of printed shapes per {@link Cell},
+     *  as {@link DecompositionOptions#withShapeBudget}; there is no limit if unset.
+     */
+    static final String SHAPE_BUDGET_PROPERTY = "mcif.shapeBudget";
+    
+    /**
+     * System property naming a file to which to write the {@link CellBlock#shapeReport()} of the conversion.
+     * The report is not written for a conversion that is pipelined or answered from the cache.
+     */
+    static final String SHAPE_REPORT_PROPERTY = "mcif.shapeReport";
+    
+    /**
+     * System property naming the {@link ExportFormat} of the output, as {@link ExportFormat#parse};
+     *  "tooltip" if unset. Only the tooltip format is pipelined.
+     */
+    static final String EXPORT_FORMAT_PROPERTY = "mcif.exportFormat";
+    
+    /**
+     * System property that, when true, converts every frame of the input, as a {@link FrameSequenceConverter},
+     *  each to its own output, named as {@link FrameSequenceConverter#frameOutput};
+     *  the input may also be a folder of images. How each frame was converted is printed to standard output.
+     */
+    static final String FRAMES_PROPERTY = "mcif.frames";
+    
+    /**
+     * System property giving the number of frames a {@link FrameSequenceConverter} may convert at once.
+     */
+    static final String FRAME_THREADS_PROPERTY = "mcif.frameThreads";
+    
+    /**
+     * System property that, when true, runs a {@link HotFolderDaemon} on the folder given as the input,
+     *  rather than converting a single image; the output argument is then unused.
+     */
+    static final String WATCH_PROPERTY = "mcif.watch";
+    
+    /**
+     * System property giving the number of images a {@link HotFolderDaemon} may convert at once.
+     */
+    static final String WATCH_THREADS_PROPERTY = "mcif.watchThreads";
+    
+    /**
+     * System property giving the time, in milliseconds, that a file in a {@link HotFolderDaemon}'s folder
+     *  must go without changes before it is converted.
+     */
+    static final String WATCH_DEBOUNCE_PROPERTY = "mcif.watchDebounceMillis";
+    
+    /**
+     * System property that, when true, writes the output as gzip, compressed in parallel blocks
+     *  by a {@link ParallelGzipOutputStream}; the default output name then ends in ".gz".
+     * The ratio and throughput of the compression are printed to standard output.
+     */
+    static final String GZIP_PROPERTY = "mcif.gzip";
+    
+    /**
+     * System property giving the number of bytes compressed into each gzip member;
+     *  {@link ParallelGzipOutputStream#DEFAULT_BLOCK_SIZE} if unset.
+     */
+    static final String GZIP_BLOCK_SIZE_PROPERTY = "mcif.gzipBlockSize";
+    
+    /**
+     * System property giving the gzip compression level, from 0 to 9; the {@link Deflater} default if unset.
+     */
+    static final String GZIP_LEVEL_PROPERTY = "mcif.gzipLevel";
+    
+    private static Path prepareFile(
             String path
     ) throws IOException {
         Path p = Path.of(path);
@@ -32,13 +162,205 @@ public class Main {
                 newPath.append("\\");
             }
             newPath.append(DEFAULT_OUTPUT_NAME);
+            if (Boolean.getBoolean(GZIP_PROPERTY)) {
+                newPath.append(".gz");
+            }
             p = Path.of( newPath.toString() );
         }
         if (!Files.exists(p)) {
             Files.createFile(p);
         }
         
-        return Files.newBufferedWriter(p);
+        return p;
+    }
+    
+    private static @Nullable ExportCache openCache() throws IOException {
+        String dir = System.getProperty(CACHE_DIR_PROPERTY);
+        if (dir == null) {
+            return null;
+        }
+        //else
+        long maxBytes = Long.getLong(CACHE_MAX_BYTES_PROPERTY, ExportCache.DEFAULT_MAX_BYTES);
+        return new ExportCache(Path.of(dir), maxBytes);
+    }
+    
+    private static DecompositionOptions decompositionOptions() {
+        DecompositionOptions res = DecompositionOptions.EXACT;
+        String tolerance = System.getProperty(COLOR_TOLERANCE_PROPERTY);
+        if (tolerance != null) {
+            DecompositionOptions.Representative representative = DecompositionOptions.Representative.valueOf(
+                    System.getProperty(COLOR_REPRESENTATIVE_PROPERTY, "first").toUpperCase(Locale.ROOT) );
+            res = res.withColorTolerance(Double.parseDouble(tolerance), representative);
+        }
+        return res.withShapeBudget( Integer.getInteger(SHAPE_BUDGET_PROPERTY, 0) );
+    }
+    
+    private static String[] cacheSettings(
+            @ArrayLen(6) String[] usedArgs,
+            boolean usePlaceholdersForEmptyCells,
+            DecompositionOptions options,
+            ExportFormat format
+    ) {
+        String[] resize = ImageTransformer.describeResize(usedArgs);
+        return new String[]{
+                resize[0],
+                resize[1],
+                resize[2],
+                Integer.toString(Util.TRANSPARENCY_THRESHOLD),
+                Boolean.toString(usePlaceholdersForEmptyCells),
+                System.getProperty(PRINT_ORDER_PROPERTY, "").toUpperCase(Locale.ROOT),
+                System.getProperty(RAW_SIZE_PROPERTY, "").toLowerCase(Locale.ROOT),
+                System.lineSeparator(),
+                options.describe(),
+                format.name()
+        };
+    }
+    
+    private static CellBlock loadRaw(
+            @ArrayLen(6) String[] usedArgs,
+            String rawSize,
+            DecompositionOptions options
+    ) throws IOException {
+        String[] resize = ImageTransformer.describeResize(usedArgs);
+        if (!resize[2].isEmpty()) {
+            throw new IllegalArgumentException("Raw RGBA input cannot be resized");
+        }
+        //else
+        String[] dimensions = rawSize.toLowerCase(Locale.ROOT).split("x");
+        if (dimensions.length != 2) {
+            throw new IllegalArgumentException("Raw size must be given as WIDTHxHEIGHT");
+        }
+        //else
+        PixelSource source = OffHeapPixelSource.map( Path.of(usedArgs[0]),
+                Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]) );
+        return CellBlock.build(source, options);
+    }
+    
+    /**
+     * Writes each of the given lines, as from {@link CellBlock#export(boolean)}, followed by a line separator.
+     * @param lines the lines to write.
+     * @param bw where to write them.
+     * @throws IOException if writing fails.
+     */
+    static void write(
+            Iterable<String> lines,
+            BufferedWriter bw
+    ) throws IOException {
+        for (String s : lines) {
+            bw.write(s);
+            bw.newLine();
+        }
+    }
+    
+    /**
+     * Opens the given output file for writing, through a {@link ParallelGzipOutputStream} if gzip is on.
+     */
+    private static OutputStream openOutput(
+            Path out
+    ) throws IOException {
+        OutputStream os = Files.newOutputStream(out);
+        if (!Boolean.getBoolean(GZIP_PROPERTY)) {
+            return os;
+        }
+        //else
+        try {
+            return new ParallelGzipOutputStream( os,
+                    Integer.getInteger(GZIP_BLOCK_SIZE_PROPERTY, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE),
+                    Integer.getInteger(GZIP_LEVEL_PROPERTY, Deflater.DEFAULT_COMPRESSION),
+                    Runtime.getRuntime().availableProcessors() );
+        } catch (IllegalArgumentException IAE) {
+            os.close();
+            throw IAE;
+        }
+    }
+    
+    @FunctionalInterface
+    private interface OutputBody {
+        /**
+         * Writes the output to the given sink, which must not be closed.
+         */
+        void write(OutputStream sink) throws IOException;
+    }
+    
+    /**
+     * Writes the given output file through the given body. The same bytes are, as they are written,
+     *  stored in the given cache if there is one, and uploaded by a {@link ChunkedUploader} if an upload URL is set;
+     *  the id of the upload is printed once the file is complete.
+     * A failure to store in the cache is only logged, since the output is already written.
+     */
+    private static void writeOutput(
+            Path out,
+            @Nullable ExportCache cache,
+            @Nullable String cacheKey,
+            OutputBody body
+    ) throws IOException {
+        String uploadUrl = System.getProperty(UPLOAD_URL_PROPERTY);
+        ChunkedUploader.Upload upload = (uploadUrl == null) ?
+                null :
+                new ChunkedUploader( new HttpUploadEndpoint(URI.create(uploadUrl)) ).open();
+        ExportCache.Store store = null;
+        try {
+            store = openStore(cache, cacheKey);
+            OutputStream file = openOutput(out);
+            try (OutputStream sink = new TeeOutputStream(file, upload, store)) {
+                body.write(sink);
+            }
+            reportCompression(file);
+            if (upload != null) {
+                System.out.println( upload.finish().getUploadId() );
+            }
+            if (store != null) {
+                try {
+                    store.commit();
+                } catch (IOException IOE) {
+                    LOGGER.warn("Could not store the output in the cache", IOE);
+                }
+            }
+        } finally {
+            if (upload != null) {
+                upload.close();
+            }
+            if (store != null) {
+                try {
+                    store.close();
+                } catch (IOException IOE) {
+                    LOGGER.warn("Could not clean up after the cache", IOE);
+                }
+            }
+        }
+    }
+    
+    private static ExportCache.@Nullable Store openStore(
+            @Nullable ExportCache cache,
+            @Nullable String cacheKey
+    ) {
+        if (cache == null || cacheKey == null) {
+            return null;
+        }
+        //else
+        try {
+            return cache.openStore(cacheKey);
+        } catch (IOException IOE) {
+            LOGGER.warn("Could not store the output in the cache", IOE);
+            return null;
+        }
+    }
+    
+    private static BufferedWriter newWriter(
+            OutputStream os
+    ) {
+        return new BufferedWriter( new OutputStreamWriter(os, StandardCharsets.UTF_8) );
+    }
+    
+    /**
+     * Logs how the given output, from {@link #openOutput}, was compressed, if it was; call once it is closed.
+     */
+    private static void reportCompression(
+            OutputStream os
+    ) {
+        if (os instanceof ParallelGzipOutputStream gzip) {
+            LOGGER.info("{}", gzip.stats());
+        }
     }
     
     private static boolean parseEmptySetting(
@@ -87,33 +409,159 @@ public class Main {
             throw new RuntimeException();
         }
         String[] usedArgs = Arrays.copyOf(args, 6);
+        boolean usePlaceholdersForEmptyCells = parseEmptySetting(usedArgs[2]);
+        String outPath = Optional.ofNullable(usedArgs[1]).orElse( System.getProperty("user.home") );
+        DecompositionOptions options = decompositionOptions();
+        ExportFormat format = ExportFormat.parse( System.getProperty(EXPORT_FORMAT_PROPERTY, "tooltip") );
+        
+        if (Boolean.getBoolean(WATCH_PROPERTY)) {
+            int workers = Integer.getInteger( WATCH_THREADS_PROPERTY,
+                    Math.max(1, Runtime.getRuntime().availableProcessors() / 2) );
+            long debounce = Long.getLong(WATCH_DEBOUNCE_PROPERTY, HotFolderDaemon.DEFAULT_DEBOUNCE_MILLIS);
+            try (HotFolderDaemon daemon = new HotFolderDaemon( Path.of(usedArgs[0]), usedArgs,
+                    usePlaceholdersForEmptyCells, options, format, workers, debounce )) {
+                daemon.run();
+            } catch (IOException IOE) {
+                //logger.atError().setCause(IOE).log();
+                throw new RuntimeException(IOE);
+            }
+            return;
+        }
         
-        BufferedImage image;
+        if (Boolean.getBoolean(FRAMES_PROPERTY)) {
+            Path out = Path.of(outPath);
+            if (Files.isDirectory(out)) {
+                out = out.resolve(DEFAULT_OUTPUT_NAME);
+            }
+            String orderName = System.getProperty(PRINT_ORDER_PROPERTY);
+            if (orderName != null && orderName.equalsIgnoreCase(CHEAPEST_ORDER)) {
+                throw new IllegalArgumentException("The cheapest order cannot be chosen for every frame");
+            }
+            //else
+            PrintOrder order = (orderName == null) ?
+                    null :
+                    PrintOrder.parse(orderName);
+            int workers = Integer.getInteger( FRAME_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors() );
+            Path frameBase = out;
+            try {
+                List<FrameSequenceConverter.FrameStats> frames = new FrameSequenceConverter( usedArgs,
+                        usePlaceholdersForEmptyCells, options, format, order, workers )
+                        .convert( Path.of(usedArgs[0]), i -> FrameSequenceConverter.frameOutput(frameBase, i) );
+                long shared = 0;
+                long cells = 0;
+                long nanos = 0;
+                for (FrameSequenceConverter.FrameStats frame : frames) {
+                    LOGGER.info("{}", frame);
+                    shared += frame.getSharedCells();
+                    cells += frame.getCells();
+                    nanos += frame.getNanos();
+                }
+                LOGGER.info(String.format(Locale.ROOT, "%d frames: %d cells, %d shared, %.1f ms of frame work",
+                        frames.size(), cells, shared, nanos / 1e6));
+            } catch (IOException IOE) {
+                //logger.atError().setCause(IOE).log();
+                throw new RuntimeException(IOE);
+            }
+            return;
+        }
+        
+        ExportCache cache;
+        String cacheKey = null;
+        try {
+            cache = openCache();
+            if (cache != null) {
+                cacheKey = ExportCache.keyFor( Path.of(usedArgs[0]),
+                        cacheSettings(usedArgs, usePlaceholdersForEmptyCells, options, format) );
+                // Only a hit opens the output, so a miss leaves any previous output, and the upload, untouched
+                ExportCache.Entry hit = cache.openEntry(cacheKey);
+                if (hit != null) {
+                    try (hit) {
+                        writeOutput( prepareFile(outPath), null, null,
+                                sink -> hit.transferTo( Channels.newChannel(sink) ) );
+                    }
+                    return;
+                }
+            }
+        } catch (IOException IOE) {
+            //logger.atError().setCause(IOE).log();
+            throw new RuntimeException(IOE);
+        }
+        
+        String rawSize = System.getProperty(RAW_SIZE_PROPERTY);
+        String reportPath = System.getProperty(SHAPE_REPORT_PROPERTY);
+        if (Boolean.getBoolean(PIPELINE_PROPERTY) && System.getProperty(PRINT_ORDER_PROPERTY) == null
+                && rawSize == null && reportPath == null && format == ExportFormat.TOOLTIP) {
+            try {
+                writeOutput(prepareFile(outPath), cache, cacheKey, sink -> {
+                    BufferedWriter bw = newWriter(sink);
+                    new ExportPipeline(ExportPipeline.DEFAULT_QUEUE_CAPACITY, options)
+                            .run(usedArgs, usePlaceholdersForEmptyCells, bw);
+                    bw.flush();
+                });
+            } catch (IOException IOE) {
+                //logger.atError().setCause(IOE).log();
+                throw new RuntimeException(IOE);
+            }
+            return;
+        }
+        
+        CellBlock imageCells;
         try {
-            image = ImageTransformer.loadImage(usedArgs[0]);
+            imageCells = (rawSize != null) ?
+                    loadRaw(usedArgs, rawSize, options) :
+                    ImageTransformer.processImage( usedArgs, ImageTransformer.loadImage(usedArgs[0]), options );
         } catch (IOException IOE) {
             //logger.atError().setCause(IOE).log();
             //return;
             throw new RuntimeException();
         }
         
-        CellBlock imageCells = ImageTransformer.processImage(usedArgs, image);
-        
         // Comment out after verification of success
         assert checkAllPoints(imageCells.seeCells());
         //if (!checkAllPoints(imageCells.seeCells())) {logger.atError().log("CELL FAILURE"); return;}
         
-        boolean usePlaceholdersForEmptyCells = parseEmptySetting(usedArgs[2]);
+        String orderName = System.getProperty(PRINT_ORDER_PROPERTY);
+        PrintOrder order = null;
+        if (orderName != null) {
+            order = orderName.equalsIgnoreCase(CHEAPEST_ORDER) ?
+                    PrintCostModel.DEFAULT.cheapest(imageCells.seeCells(), usePlaceholdersForEmptyCells,
+                            PrintCostModel.builtInOrders()) :
+                    PrintOrder.parse(orderName);
+        }
         
-        String outPath = Optional.ofNullable(usedArgs[1]).orElse( System.getProperty("user.home") );
-        try(BufferedWriter bw = prepareFile(outPath)) {
-            for (String s : imageCells.export(usePlaceholdersForEmptyCells)) {
-                bw.write(s);
-                bw.newLine();
+        List<Cell> cells = (order == null) ?
+                List.copyOf( imageCells.seeCells() ) :
+                order.arrange( imageCells.seeCells() );
+        if (Boolean.getBoolean(PARALLEL_ENCODE_PROPERTY)) {
+            ExportFormat.Encoding encoding = format.prepare(cells, usePlaceholdersForEmptyCells);
+            try {
+                writeOutput( prepareFile(outPath), cache, cacheKey,
+                        sink -> new ParallelExportEncoder().write(encoding, cells, sink) );
+            } catch (IOException IOE) {
+                //logger.atError().setCause(IOE).log();
+                throw new RuntimeException(IOE);
+            }
+        } else {
+            List<String> lines = format.export(cells, usePlaceholdersForEmptyCells);
+            try {
+                writeOutput(prepareFile(outPath), cache, cacheKey, sink -> {
+                    BufferedWriter bw = newWriter(sink);
+                    write(lines, bw);
+                    bw.flush();
+                });
+            } catch (IOException IOE) {
+                //logger.atError().setCause(IOE).log();
+                throw new RuntimeException();
+            }
+        }
+        
+        if (reportPath != null) {
+            try (BufferedWriter bw = Files.newBufferedWriter( Path.of(reportPath) )) {
+                write(imageCells.shapeReport(), bw);
+            } catch (IOException IOE) {
+                //logger.atError().setCause(IOE).log();
+                throw new RuntimeException(IOE);
             }
-        } catch (IOException IOE) {
-            //logger.atError().setCause(IOE).log();
-            throw new RuntimeException();
         }
     }
 }
\ No newline at end of file
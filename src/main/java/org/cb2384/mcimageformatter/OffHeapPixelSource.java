@@ -0,0 +1,196 @@
+package org.cb2384.mcimageformatter;
+
+import static org.cb2384.mcimageformatter.Util.CELL_SIZE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * A {@link PixelSource} whose pixels are held outside of the Java heap,
+ *  either in freshly allocated direct memory or in a memory-mapped file of raw RGBA pixels.
+ * Pixels are stored as 4 bytes each, R, G, B, then A, row by row from the top,
+ *  which is the layout of a raw RGBA file as written by most image tools.
+ * A single direct buffer is limited to 2^31 bytes, so the pixels are split across several buffers,
+ *  each holding a whole number of rows of {@link Cell}s; the total size of the source is not limited.
+ * Being off-heap, the pixels neither count against the maximum heap size nor need to be traced by the collector.
+ */
+public class OffHeapPixelSource
+        implements PixelSource {
+    
+    private static final int BYTES_PER_PIXEL = 4;
+    
+    private final @Positive int width;
+    
+    private final @Positive int height;
+    
+    private final @Positive int rowsPerWindow;
+    
+    private final IntBuffer[] windows;
+    
+    private OffHeapPixelSource(
+            @Positive int width,
+            @Positive int height,
+            @Positive int rowsPerWindow,
+            IntBuffer[] windows
+    ) {
+        this.width = width;
+        this.height = height;
+        this.rowsPerWindow = rowsPerWindow;
+        this.windows = windows;
+    }
+    
+    private static @Positive int rowsPerWindow(
+            @Positive int width,
+            @Positive int height
+    ) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Dimensions must be positive");
+        }
+        //else
+        long cellRowBytes = (long) width * CELL_SIZE * BYTES_PER_PIXEL;
+        long cellRows = Integer.MAX_VALUE / cellRowBytes;
+        if (cellRows < 1) {
+            throw new IllegalArgumentException("Image too wide");
+        }
+        //else
+        return (int) Math.min(cellRows * CELL_SIZE, height);
+    }
+    
+    /**
+     * Allocates a fully transparent source of the given size in direct memory,
+     *  to be filled with {@link #setRGB}.
+     * @param width the width of the source, in pixels.
+     * @param height the height of the source, in pixels.
+     * @return a new, fully transparent source.
+     */
+    public static OffHeapPixelSource allocate(
+            @Positive int width,
+            @Positive int height
+    ) {
+        int rowsPerWindow = rowsPerWindow(width, height);
+        IntBuffer[] windows = new IntBuffer[(height + rowsPerWindow - 1) / rowsPerWindow];
+        for (int i = 0; i < windows.length; i++) {
+            int rows = Math.min(rowsPerWindow, height - i * rowsPerWindow);
+            windows[i] = ByteBuffer.allocateDirect(rows * width * BYTES_PER_PIXEL)
+                    .order(ByteOrder.BIG_ENDIAN)
+                    .asIntBuffer();
+        }
+        return new OffHeapPixelSource(width, height, rowsPerWindow, windows);
+    }
+    
+    /**
+     * Maps a file of raw RGBA pixels, read-only.
+     * The file must hold exactly width * height pixels, and must not be modified while this source is in use.
+     * @param rawRGBA the file to map.
+     * @param width the width of the image, in pixels.
+     * @param height the height of the image, in pixels.
+     * @return a source that reads from the mapped file.
+     * @throws IOException if the file cannot be mapped, or has the wrong size.
+     */
+    public static OffHeapPixelSource map(
+            Path rawRGBA,
+            @Positive int width,
+            @Positive int height
+    ) throws IOException {
+        int rowsPerWindow = rowsPerWindow(width, height);
+        long rowBytes = (long) width * BYTES_PER_PIXEL;
+        try (FileChannel ch = FileChannel.open(rawRGBA, StandardOpenOption.READ)) {
+            if (ch.size() != rowBytes * height) {
+                throw new IOException("Expected " + (rowBytes * height) + " bytes of RGBA pixels, but found "
+                        + ch.size());
+            }
+            //else
+            IntBuffer[] windows = new IntBuffer[(height + rowsPerWindow - 1) / rowsPerWindow];
+            for (int i = 0; i < windows.length; i++) {
+                int rows = Math.min(rowsPerWindow, height - i * rowsPerWindow);
+                // A mapping stays valid after its channel is closed
+                windows[i] = ch.map(FileChannel.MapMode.READ_ONLY, i * rowsPerWindow * rowBytes, rows * rowBytes)
+                        .order(ByteOrder.BIG_ENDIAN)
+                        .asIntBuffer();
+            }
+            return new OffHeapPixelSource(width, height, rowsPerWindow, windows);
+        }
+    }
+    
+    public int getWidth() {
+        return width;
+    }
+    
+    public int getHeight() {
+        return height;
+    }
+    
+    public void getRGB(
+            @NonNegative int x,
+            @NonNegative int y,
+            @NonNegative int w,
+            @NonNegative int h,
+            int[] rgbArray,
+            @NonNegative int offset,
+            @NonNegative int scansize
+    ) {
+        checkBounds(x, y, w, h);
+        for (int row = 0; row < h; row++) {
+            int rowOffset = offset + row * scansize;
+            int sourceRow = y + row;
+            IntBuffer window = windows[sourceRow / rowsPerWindow];
+            window.get((sourceRow % rowsPerWindow) * width + x, rgbArray, rowOffset, w);
+            for (int i = rowOffset; i < rowOffset + w; i++) {
+                rgbArray[i] = Integer.rotateRight(rgbArray[i], 8);
+            }
+        }
+    }
+    
+    /**
+     * Writes a rectangle of pixels, which must lie entirely within this source,
+     *  in the same layout as {@link #getRGB}.
+     * @param x the x-coordinate of the left of the rectangle.
+     * @param y the y-coordinate of the top of the rectangle.
+     * @param w the width of the rectangle.
+     * @param h the height of the rectangle.
+     * @param rgbArray the pixels to write, in {@link java.awt.image.BufferedImage#TYPE_INT_ARGB} format.
+     * @param offset the index in rgbArray of the top-left pixel.
+     * @param scansize the distance in rgbArray from the start of one row to the start of the next.
+     * @throws java.nio.ReadOnlyBufferException if this source is a read-only mapping.
+     */
+    public void setRGB(
+            @NonNegative int x,
+            @NonNegative int y,
+            @NonNegative int w,
+            @NonNegative int h,
+            int[] rgbArray,
+            @NonNegative int offset,
+            @NonNegative int scansize
+    ) {
+        checkBounds(x, y, w, h);
+        for (int row = 0; row < h; row++) {
+            int rowOffset = offset + row * scansize;
+            int sourceRow = y + row;
+            IntBuffer window = windows[sourceRow / rowsPerWindow];
+            int index = (sourceRow % rowsPerWindow) * width + x;
+            for (int i = 0; i < w; i++) {
+                window.put(index + i, Integer.rotateLeft(rgbArray[rowOffset + i], 8));
+            }
+        }
+    }
+    
+    private void checkBounds(
+            int x,
+            int y,
+            int w,
+            int h
+    ) {
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+            throw new IndexOutOfBoundsException("Rectangle is not within the source");
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.cb2384.mcimageformatter;
+
+import static org.cb2384.mcimageformatter.Util.CELL_SIZE;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * The pixels of an image, padded to a multiple of {@link Util#CELL_SIZE} on each side
+ *  and with the alpha threshold of {@link Util#maskAlpha} already applied, held in a single int array.
+ * The image is placed at {@link #getOffsetX()}, {@link #getOffsetY()}, with the padding split evenly
+ *  between the sides, any odd pixel on the right and on the top; the padding around it is transparent.
+ * Built by {@link #of}, which reads every pixel of the image once, writing it straight to its padded position,
+ *  so that padding and masking take no image of their own.
+ * Instances are not changed after they are built, so may be read from any number of threads.
+ */
+final class PaddedPixels implements PixelSource {
+    
+    private final int[] pixels;
+    
+    private final @Positive int width;
+    
+    private final @Positive int height;
+    
+    private final @NonNegative int offsetX;
+    
+    private final @NonNegative int offsetY;
+    
+    private PaddedPixels(
+            int[] pixels,
+            @Positive int width,
+            @Positive int height,
+            @NonNegative int offsetX,
+            @NonNegative int offsetY
+    ) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+    }
+    
+    /**
+     * Pads the given image and applies the alpha threshold to it, in one pass over its pixels.
+     * Images of {@link BufferedImage#TYPE_INT_ARGB} and {@link BufferedImage#TYPE_INT_RGB},
+     *  such as those made by resizing, are read straight from their rasters; any other type,
+     *  including {@link BufferedImage#TYPE_CUSTOM}, is read through its color model.
+     * @param image the image to pad.
+     * @return the padded pixels of the image.
+     * @throws IllegalArgumentException if the padded image would be too large for an array.
+     */
+    static PaddedPixels of(
+            BufferedImage image
+    ) {
+        int imageWidth = image.getWidth();
+        int imageHeight = image.getHeight();
+        int widthUnder = Math.floorMod(-imageWidth, CELL_SIZE);
+        int heightUnder = Math.floorMod(-imageHeight, CELL_SIZE);
+        int width = imageWidth + widthUnder;
+        int height = imageHeight + heightUnder;
+        if ((long) width * height > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Image is too large to pad");
+        }
+        //else
+        
+        // Split evenly, with any odd pixel on the right and on the top
+        int offsetX = widthUnder / 2;
+        int offsetY = heightUnder - (heightUnder / 2);
+        int[] pixels = new int[width * height];
+        
+        int type = image.getType();
+        boolean direct = (type == BufferedImage.TYPE_INT_ARGB) || (type == BufferedImage.TYPE_INT_RGB);
+        // The alpha bits of TYPE_INT_RGB are undefined in its raster
+        int alpha = (type == BufferedImage.TYPE_INT_RGB) ?
+                0xFF000000 :
+                0;
+        int[] row = new int[imageWidth];
+        for (int y = 0; y < imageHeight; y++) {
+            if (direct) {
+                image.getRaster().getDataElements(0, y, imageWidth, 1, row);
+            } else {
+                image.getRGB(0, y, imageWidth, 1, row, 0, imageWidth);
+            }
+            int base = (y + offsetY) * width + offsetX;
+            for (int x = 0; x < imageWidth; x++) {
+                pixels[base + x] = Util.maskAlpha(row[x] | alpha);
+            }
+        }
+        return new PaddedPixels(pixels, width, height, offsetX, offsetY);
+    }
+    
+    public @Positive int getWidth() {
+        return width;
+    }
+    
+    public @Positive int getHeight() {
+        return height;
+    }
+    
+    /**
+     * Gets the number of columns of padding to the left of the image.
+     * @return the x-coordinate of the left of the image.
+     */
+    public @NonNegative int getOffsetX() {
+        return offsetX;
+    }
+    
+    /**
+     * Gets the number of rows of padding above the image.
+     * @return the y-coordinate of the top of the image.
+     */
+    public @NonNegative int getOffsetY() {
+        return offsetY;
+    }
+    
+    public void getRGB(
+            @NonNegative int x,
+            @NonNegative int y,
+            @NonNegative int w,
+            @NonNegative int h,
+            int[] rgbArray,
+            @NonNegative int offset,
+            @NonNegative int scansize
+    ) {
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(pixels, (y + row) * width + x, rgbArray, offset + row * scansize, w);
+        }
+    }
+    
+    /**
+     * Copies the pixels of one Cell.
+     * @param cellX the column of the Cell, from 0 at the left.
+     * @param cellY the row of the Cell, from 0 at the top.
+     * @return the pixels of the Cell, row by row.
+     */
+    int@ArrayLen(CELL_SIZE * CELL_SIZE)[] readCell(
+            @NonNegative int cellX,
+            @NonNegative int cellY
+    ) {
+        int[] res = new int[CELL_SIZE * CELL_SIZE];
+        getRGB(cellX * CELL_SIZE, cellY * CELL_SIZE, CELL_SIZE, CELL_SIZE, res, 0, CELL_SIZE);
+        return res;
+    }
+    
+    /**
+     * Copies the pixels of one row of Cells.
+     * @param cellY the row of Cells, from 0 at the top.
+     * @return the pixels of the row, {@link Util#CELL_SIZE} rows of {@link #getWidth()} pixels.
+     */
+    int[] readRow(
+            @NonNegative int cellY
+    ) {
+        int from = cellY * CELL_SIZE * width;
+        return Arrays.copyOfRange(pixels, from, from + CELL_SIZE * width);
+    }
+}
@@ -0,0 +1,180 @@
+package org.cb2384.mcimageformatter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Function;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Encodes an export, as from {@link CellBlock#export(boolean)}, on a {@link ForkJoinPool} rather than one
+ *  {@link Cell} after another.
+ * The Cells are split into contiguous runs, each of which is encoded on its own into a chunk of bytes,
+ *  exactly as the lines would be written to a file, each followed by the line separator, in UTF-8.
+ * Chunks are written in the order of their runs, so the output is byte for byte that of writing the export
+ *  line by line; at most a fixed number of chunks are encoded or waiting to be written at once,
+ *  and encoding further runs waits for the oldest chunk to be written.
+ */
+public class ParallelExportEncoder {
+    
+    /**
+     * Default number of Cells encoded into one chunk.
+     */
+    public static final int DEFAULT_CELLS_PER_CHUNK = 256;
+    
+    /**
+     * Default upper bound on the number of chunks encoded or waiting to be written at once.
+     */
+    public static final int DEFAULT_MAX_CHUNKS_IN_FLIGHT = 4 * Runtime.getRuntime().availableProcessors();
+    
+    /**
+     * The line separator, as {@link java.io.BufferedWriter#newLine()} writes it.
+     */
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+    
+    private final @Positive int cellsPerChunk;
+    
+    private final @Positive int maxChunksInFlight;
+    
+    private final ForkJoinPool pool;
+    
+    /**
+     * Builds an encoder with the default settings, on the common pool.
+     */
+    public ParallelExportEncoder() {
+        this(DEFAULT_CELLS_PER_CHUNK, DEFAULT_MAX_CHUNKS_IN_FLIGHT, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Builds an encoder.
+     * @param cellsPerChunk the number of Cells encoded into one chunk.
+     * @param maxChunksInFlight the upper bound on the number of chunks encoded or waiting to be written at once.
+     * @param pool the pool on which to encode.
+     */
+    public ParallelExportEncoder(
+            @Positive int cellsPerChunk,
+            @Positive int maxChunksInFlight,
+            ForkJoinPool pool
+    ) {
+        if (cellsPerChunk < 1 || maxChunksInFlight < 1) {
+            throw new IllegalArgumentException("Chunk size and chunks in flight must be positive");
+        }
+        //else
+        this.cellsPerChunk = cellsPerChunk;
+        this.maxChunksInFlight = maxChunksInFlight;
+        this.pool = pool;
+    }
+    
+    /**
+     * Encodes the given Cells, in the given order, and writes them.
+     * @param cells the Cells to export, in the order in which they are to be written,
+     *              such as that of {@link CellBlock#seeCells()} or of a {@link PrintOrder}.
+     * @param usePlaceholderForNull as with {@link Cell#export(boolean)}.
+     * @param out where to write; not flushed or closed.
+     * @return the number of bytes written.
+     * @throws IOException if writing fails.
+     */
+    public @NonNegative long write(
+            List<Cell> cells,
+            boolean usePlaceholderForNull,
+            OutputStream out
+    ) throws IOException {
+        return write(cells, c -> c.export(usePlaceholderForNull), out);
+    }
+    
+    /**
+     * Writes the header of the given Encoding, then encodes the given Cells with it, in the given order,
+     *  and writes them; the whole export, byte for byte as {@link ExportFormat#export} written line by line.
+     * @param encoding the encoding of the export, from {@link ExportFormat#prepare} for these Cells.
+     * @param cells the Cells to export, in the order in which they are to be written.
+     * @param out where to write; not flushed or closed.
+     * @return the number of bytes written.
+     * @throws IOException if writing fails.
+     */
+    public @NonNegative long write(
+            ExportFormat.Encoding encoding,
+            List<Cell> cells,
+            OutputStream out
+    ) throws IOException {
+        byte[] header = encode(encoding.header(), Function.identity(), LINE_SEPARATOR);
+        out.write(header);
+        return header.length + write(cells, encoding::encode, out);
+    }
+    
+    /**
+     * Encodes the given Cells, in the given order, with the given encoder, and writes them.
+     * @param cells the Cells to export, in the order in which they are to be written.
+     * @param encoder the encoding of each Cell as a line, or null for a Cell that is not written,
+     *                such as {@link ExportFormat.Encoding#encode}; called from the threads of the pool.
+     * @param out where to write; not flushed or closed.
+     * @return the number of bytes written.
+     * @throws IOException if writing fails.
+     */
+    public @NonNegative long write(
+            List<Cell> cells,
+            Function<Cell, @Nullable String> encoder,
+            OutputStream out
+    ) throws IOException {
+        Deque<ForkJoinTask<byte[]>> inFlight = new ArrayDeque<>(maxChunksInFlight);
+        long written = 0;
+        try {
+            for (int from = 0; from < cells.size(); from += cellsPerChunk) {
+                if (inFlight.size() == maxChunksInFlight) {
+                    written += writeOldest(inFlight, out);
+                }
+                List<Cell> run = cells.subList(from, Math.min(from + cellsPerChunk, cells.size()));
+                inFlight.addLast( pool.submit(() -> encode(run, encoder, LINE_SEPARATOR)) );
+            }
+            while (!inFlight.isEmpty()) {
+                written += writeOldest(inFlight, out);
+            }
+            return written;
+        } catch (InterruptedException IE) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Encoding interrupted");
+        } catch (ExecutionException EE) {
+            throw new RuntimeException(EE.getCause());
+        } finally {
+            for (ForkJoinTask<byte[]> chunk : inFlight) {
+                chunk.cancel(false);
+            }
+        }
+    }
+    
+    private static @NonNegative int writeOldest(
+            Deque<ForkJoinTask<byte[]>> inFlight,
+            OutputStream out
+    ) throws IOException, InterruptedException, ExecutionException {
+        byte[] chunk = inFlight.getFirst().get();
+        inFlight.removeFirst();
+        out.write(chunk);
+        return chunk.length;
+    }
+    
+    private static <T> byte[] encode(
+            List<T> run,
+            Function<T, @Nullable String> encoder,
+            byte[] separator
+    ) {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        for (T item : run) {
+            String line = encoder.apply(item);
+            if (line != null) {
+                res.writeBytes( line.getBytes(StandardCharsets.UTF_8) );
+                res.writeBytes(separator);
+            }
+        }
+        return res.toByteArray();
+    }
+}
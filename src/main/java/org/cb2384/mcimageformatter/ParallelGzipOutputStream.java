@@ -0,0 +1,370 @@
+package org.cb2384.mcimageformatter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Compresses what is written to it as gzip, compressing blocks of a fixed size in parallel, in the manner of pigz.
+ * Each block is compressed on its own, with {@link Deflater}, into a complete gzip member,
+ *  and the members are written in order; a file of several members is standard gzip,
+ *  which gunzip and {@link java.util.zip.GZIPInputStream} read as the concatenation of the blocks.
+ * Blocks share no history, so each costs a little in ratio against compressing the whole in one piece;
+ *  with blocks of a megabyte or so, as is the default, the cost is small for repetitive text such as exports.
+ * At most two blocks per thread are held, waiting or being compressed, before writing waits on the oldest.
+ * How much was written, how well it compressed, and how fast, are available as {@link Stats}.
+ * Like most streams, this one is not safe for concurrent writes.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+    
+    /**
+     * Default number of bytes compressed into each gzip member.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+    
+    /**
+     * The member header: gzip magic, deflate, no flags, no modification time, no extra flags, unknown OS.
+     */
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    
+    private static final int BUFFER_SIZE = 1 << 16;
+    
+    private final OutputStream out;
+    
+    private final @Positive int blockSize;
+    
+    private final @IntRange(from = -1, to = 9) int level;
+    
+    private final ExecutorService pool;
+    
+    private final @Positive int maxPending;
+    
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    
+    private final AtomicLong compressNanos = new AtomicLong();
+    
+    private final long startNanos;
+    
+    private byte[] block;
+    
+    private @NonNegative int count;
+    
+    private long uncompressedBytes;
+    
+    private long compressedBytes;
+    
+    private long members;
+    
+    private long nanos = -1;
+    
+    private boolean closed;
+    
+    /**
+     * A snapshot of what a ParallelGzipOutputStream has compressed.
+     */
+    public static final class Stats {
+        
+        private final long uncompressedBytes;
+        
+        private final long compressedBytes;
+        
+        private final long members;
+        
+        private final long nanos;
+        
+        private final long compressNanos;
+        
+        private Stats(
+                long uncompressedBytes,
+                long compressedBytes,
+                long members,
+                long nanos,
+                long compressNanos
+        ) {
+            this.uncompressedBytes = uncompressedBytes;
+            this.compressedBytes = compressedBytes;
+            this.members = members;
+            this.nanos = nanos;
+            this.compressNanos = compressNanos;
+        }
+        
+        /**
+         * Gets the number of bytes written to the stream, not counting those of a block still being filled.
+         * @return the uncompressed bytes.
+         */
+        public long getUncompressedBytes() {
+            return uncompressedBytes;
+        }
+        
+        /**
+         * Gets the number of bytes of gzip written out, headers and trailers included.
+         * @return the compressed bytes.
+         */
+        public long getCompressedBytes() {
+            return compressedBytes;
+        }
+        
+        /**
+         * Gets the number of gzip members written out, one for each block.
+         * @return the number of members.
+         */
+        public long getMembers() {
+            return members;
+        }
+        
+        /**
+         * Gets the time from when the stream was opened until it was closed, or until now, if still open.
+         * @return the elapsed time, in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+        
+        /**
+         * Gets the time spent compressing, summed over every thread.
+         * @return the compression time, in nanoseconds.
+         */
+        public long getCompressNanos() {
+            return compressNanos;
+        }
+        
+        /**
+         * Gets how many times smaller the output is than the input.
+         * @return the uncompressed bytes over the compressed bytes; 0 if nothing has been written.
+         */
+        public double getRatio() {
+            return (compressedBytes == 0) ?
+                    0 :
+                    (double) uncompressedBytes / compressedBytes;
+        }
+        
+        /**
+         * Gets the rate at which the stream took in bytes, over the whole time it was open.
+         * This is bound by the writer as well as by compression; see {@link #getCompressNanos()} for the latter.
+         * @return the uncompressed megabytes (of 2^20 bytes) per second.
+         */
+        public double getMegabytesPerSecond() {
+            return (nanos == 0) ?
+                    0 :
+                    uncompressedBytes / (double) (1 << 20) / (nanos / 1e9);
+        }
+        
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "gzip: %d bytes to %d bytes (ratio %.2f) in %d members, %.1f ms (%.1f MB/s), "
+                            + "%.1f ms compressing",
+                    uncompressedBytes, compressedBytes, getRatio(), members,
+                    nanos / 1e6, getMegabytesPerSecond(), compressNanos / 1e6);
+        }
+    }
+    
+    /**
+     * Builds a stream with the default block size, compression level, and one thread per processor.
+     * @param out where to write the gzip output; closed when this stream is closed.
+     */
+    public ParallelGzipOutputStream(
+            OutputStream out
+    ) {
+        this(out, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION, Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * Builds a stream.
+     * @param out where to write the gzip output; closed when this stream is closed.
+     * @param blockSize the number of bytes compressed into each gzip member.
+     * @param level the compression level, from 0 to 9, as {@link Deflater#setLevel},
+     *              or {@link Deflater#DEFAULT_COMPRESSION}.
+     * @param threads the number of blocks that may be compressed at once.
+     */
+    public ParallelGzipOutputStream(
+            OutputStream out,
+            @Positive int blockSize,
+            @IntRange(from = -1, to = 9) int level,
+            @Positive int threads
+    ) {
+        if (blockSize < 1 || threads < 1) {
+            throw new IllegalArgumentException("Block size and threads must be positive");
+        }
+        //else
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Compression level must be from -1 to 9");
+        }
+        //else
+        this.out = out;
+        this.blockSize = blockSize;
+        this.level = level;
+        pool = Executors.newFixedThreadPool(threads);
+        maxPending = threads * 2;
+        block = new byte[blockSize];
+        startNanos = System.nanoTime();
+    }
+    
+    @Override
+    public void write(
+            int b
+    ) throws IOException {
+        ensureOpen();
+        block[count++] = (byte) b;
+        if (count == blockSize) {
+            submitBlock();
+        }
+    }
+    
+    @Override
+    public void write(
+            byte[] b,
+            @NonNegative int off,
+            @NonNegative int len
+    ) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, blockSize - count);
+            System.arraycopy(b, off, block, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+    
+    /**
+     * Writes out the members that are already compressed and flushes the underlying stream.
+     * The block being filled is not cut short, so flushing often does not cost compression ratio;
+     *  what it holds is only written out once it is full, or the stream is closed.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+            writeOldest();
+        }
+        out.flush();
+    }
+    
+    /**
+     * Compresses the last block, waits for every block to be written out, and closes the underlying stream.
+     * An empty stream is still written as one empty member, so that the output is valid gzip.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        //else
+        closed = true;
+        try {
+            if (count > 0 || members + pending.size() == 0) {
+                submitBlock();
+            }
+            while (!pending.isEmpty()) {
+                writeOldest();
+            }
+            nanos = System.nanoTime() - startNanos;
+        } finally {
+            pool.shutdownNow();
+            out.close();
+        }
+    }
+    
+    /**
+     * Takes a snapshot of what this stream has compressed; complete once it has been closed.
+     * @return the current statistics.
+     */
+    public Stats stats() {
+        long elapsed = (nanos < 0) ?
+                System.nanoTime() - startNanos :
+                nanos;
+        return new Stats(uncompressedBytes, compressedBytes, members, elapsed, compressNanos.get());
+    }
+    
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+    
+    private void submitBlock() throws IOException {
+        byte[] data = block;
+        int length = count;
+        pending.addLast( pool.submit(() -> compress(data, length)) );
+        uncompressedBytes += length;
+        block = new byte[blockSize];
+        count = 0;
+        while (pending.size() > maxPending) {
+            writeOldest();
+        }
+    }
+    
+    private void writeOldest() throws IOException {
+        byte[] member;
+        try {
+            member = pending.removeFirst().get();
+        } catch (InterruptedException IE) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Compression interrupted");
+        } catch (ExecutionException EE) {
+            throw new IOException("Compression failed", EE.getCause());
+        }
+        out.write(member);
+        compressedBytes += member.length;
+        members++;
+    }
+    
+    /**
+     * Compresses the given bytes into one complete gzip member: header, deflate data, CRC-32, and length.
+     */
+    private byte[] compress(
+            byte[] data,
+            @NonNegative int length
+    ) {
+        long start = System.nanoTime();
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            ByteArrayOutputStream res = new ByteArrayOutputStream(length / 4 + HEADER.length + 8);
+            res.writeBytes(HEADER);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                res.write( buffer, 0, deflater.deflate(buffer) );
+            }
+            
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, length);
+            writeIntLE(res, (int) crc.getValue());
+            writeIntLE(res, length);
+            return res.toByteArray();
+        } finally {
+            deflater.end();
+            compressNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+    
+    private static void writeIntLE(
+            ByteArrayOutputStream out,
+            int value
+    ) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+}
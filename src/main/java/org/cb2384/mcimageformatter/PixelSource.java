@@ -0,0 +1,82 @@
+package org.cb2384.mcimageformatter;
+
+import java.awt.image.BufferedImage;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * A rectangle of pixels from which a {@link CellBlock} can be built, without requiring a {@link BufferedImage}.
+ * The pixels of a source may live anywhere, such as off-heap, in which case the source
+ *  is not bound by the size limit of the Java arrays that back a BufferedImage.
+ * Pixels are read as ints in {@link BufferedImage#TYPE_INT_ARGB} (AARRGGBB in hex) format,
+ *  in the same layout as {@link BufferedImage#getRGB(int, int, int, int, int[], int, int)}.
+ * Implementations must permit concurrent reads from several threads.
+ * @see OffHeapPixelSource
+ */
+public interface PixelSource {
+    
+    /**
+     * Gets the width of this source, in pixels.
+     * @return the width of this source.
+     */
+    @Positive int getWidth();
+    
+    /**
+     * Gets the height of this source, in pixels.
+     * @return the height of this source.
+     */
+    @Positive int getHeight();
+    
+    /**
+     * Reads a rectangle of pixels, which must lie entirely within this source.
+     * @param x the x-coordinate of the left of the rectangle.
+     * @param y the y-coordinate of the top of the rectangle.
+     * @param w the width of the rectangle.
+     * @param h the height of the rectangle.
+     * @param rgbArray where to write the pixels.
+     * @param offset the index in rgbArray of the top-left pixel.
+     * @param scansize the distance in rgbArray from the start of one row to the start of the next.
+     */
+    void getRGB(
+            @NonNegative int x,
+            @NonNegative int y,
+            @NonNegative int w,
+            @NonNegative int h,
+            int[] rgbArray,
+            @NonNegative int offset,
+            @NonNegative int scansize
+    );
+    
+    /**
+     * Wraps the given image as a source; reads are passed through to the image.
+     * @param image the image to read from.
+     * @return a source that reads from the given image.
+     */
+    static PixelSource of(
+            BufferedImage image
+    ) {
+        return new PixelSource() {
+            public int getWidth() {
+                return image.getWidth();
+            }
+            
+            public int getHeight() {
+                return image.getHeight();
+            }
+            
+            public void getRGB(
+                    int x,
+                    int y,
+                    int w,
+                    int h,
+                    int[] rgbArray,
+                    int offset,
+                    int scansize
+            ) {
+                image.getRGB(x, y, w, h, rgbArray, offset, scansize);
+            }
+        };
+    }
+}
@@ -0,0 +1,147 @@
+package org.cb2384.mcimageformatter;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Estimates how long a printer will take to work through a sequence of {@link Cell}s.
+ * Each printed cell costs a fixed setup, plus a cost for each of its printed shapes,
+ *  plus a cost for each tint that it uses and the previously printed cell did not.
+ * Costs are in arbitrary units; only their ratios matter when comparing {@link PrintOrder}s.
+ * Estimates are computed in parallel, one cell (and one transition) per task.
+ */
+public class PrintCostModel {
+    
+    /**
+     * A model in which a tint change costs half as much as a cell setup, and a shape a tenth as much.
+     */
+    public static final PrintCostModel DEFAULT = new PrintCostModel(1.0, 0.1, 0.5);
+    
+    private final double cellCost;
+    
+    private final double shapeCost;
+    
+    private final double tintChangeCost;
+    
+    /**
+     * Builds a cost model with the given weights.
+     * @param cellCost the fixed cost of setting up any printed cell.
+     * @param shapeCost the cost of each printed shape.
+     * @param tintChangeCost the cost of each tint that a cell uses and that the previous cell did not.
+     */
+    public PrintCostModel(
+            double cellCost,
+            double shapeCost,
+            double tintChangeCost
+    ) {
+        if (!(cellCost >= 0 && shapeCost >= 0 && tintChangeCost >= 0)) {
+            throw new IllegalArgumentException("Costs must be non-negative");
+        }
+        //else
+        this.cellCost = cellCost;
+        this.shapeCost = shapeCost;
+        this.tintChangeCost = tintChangeCost;
+    }
+    
+    /**
+     * Gets every built-in ordering: the four {@link Orderable2D.AscendFrom} corners,
+     *  then {@link PrintOrder#BY_PALETTE}, {@link PrintOrder#BALANCED}, and {@link PrintOrder#HILBERT}.
+     * @return the built-in orderings.
+     */
+    public static List<PrintOrder> builtInOrders() {
+        return List.of(
+                PrintOrder.fromCorner(Orderable2D.AscendFrom.LOW_Y_LOW_X),
+                PrintOrder.fromCorner(Orderable2D.AscendFrom.HIGH_Y_LOW_X),
+                PrintOrder.fromCorner(Orderable2D.AscendFrom.LOW_Y_HIGH_X),
+                PrintOrder.fromCorner(Orderable2D.AscendFrom.HIGH_Y_HIGH_X),
+                PrintOrder.BY_PALETTE,
+                PrintOrder.BALANCED,
+                PrintOrder.HILBERT
+        );
+    }
+    
+    /**
+     * Estimates the cost of printing the given cells in the given order.
+     * Empty cells are skipped unless placeholders are printed for them,
+     *  in which case they cost only the setup of a cell.
+     * @param order the cells, in the order in which they will be printed.
+     * @param usePlaceholderForNull as with {@link Cell#export(boolean)}.
+     * @return the estimated cost.
+     */
+    public double estimate(
+            List<Cell> order,
+            boolean usePlaceholderForNull
+    ) {
+        int[][] tints = order.parallelStream()
+                .map(Cell::printedTints)
+                .filter(t -> usePlaceholderForNull || t.length != 0)
+                .toArray(int[][]::new);
+        int shapes = order.parallelStream()
+                .mapToInt(Cell::printedShapeCount)
+                .sum();
+        
+        long tintChanges = IntStream.range(0, tints.length)
+                .parallel()
+                .map(i -> (i == 0) ?
+                        tints[0].length :
+                        countNew(tints[i - 1], tints[i]))
+                .asLongStream()
+                .sum();
+        
+        return (cellCost * tints.length) + (shapeCost * shapes) + (tintChangeCost * tintChanges);
+    }
+    
+    /**
+     * Finds, among the given orderings, the one that this model estimates will finish fastest.
+     * The candidates are arranged and costed in parallel; ties go to the earliest candidate.
+     * @param cells the cells to print.
+     * @param usePlaceholderForNull as with {@link Cell#export(boolean)}.
+     * @param candidates the orderings to choose from; must not be empty.
+     * @return the cheapest candidate.
+     */
+    public PrintOrder cheapest(
+            Collection<Cell> cells,
+            boolean usePlaceholderForNull,
+            List<PrintOrder> candidates
+    ) {
+        if (candidates.isEmpty()) {
+            throw new IllegalArgumentException("No orderings to choose from");
+        }
+        //else
+        double[] costs = candidates.parallelStream()
+                .mapToDouble(o -> estimate(o.arrange(cells), usePlaceholderForNull))
+                .toArray();
+        
+        return IntStream.range(0, costs.length)
+                .boxed()
+                .min( Comparator.<Integer>comparingDouble(i -> costs[i]).thenComparingInt(i -> i) )
+                .map(candidates::get)
+                .orElseThrow();
+    }
+    
+    /**
+     * Counts the tints of next that are not in prev; both arrays must be sorted.
+     */
+    private static @NonNegative int countNew(
+            int[] prev,
+            int[] next
+    ) {
+        int res = 0;
+        int p = 0;
+        for (int tint : next) {
+            while (p < prev.length && prev[p] < tint) {
+                p++;
+            }
+            if (p == prev.length || prev[p] != tint) {
+                res++;
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,150 @@
+package org.cb2384.mcimageformatter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * A strategy for the order in which the {@link Cell}s of a {@link CellBlock} are handed to the printer.
+ * The default order is that of {@link Cell#order2D}, {@link Orderable2D#fromBottomLeft};
+ *  the corners of {@link Orderable2D.AscendFrom} are available through {@link #fromCorner},
+ *  and a few strategies that try to reduce the work of the printer between cells are provided as constants.
+ * Any ordering may be costed with a {@link PrintCostModel}, and {@link PrintCostModel#cheapest} picks
+ *  the ordering that is estimated to finish fastest.
+ */
+public interface PrintOrder {
+    
+    /**
+     * Groups cells by their dominant tint, so that consecutive cells share as much ink as possible.
+     * Groups are in order of their first cell, and the cells within a group keep the default order.
+     */
+    PrintOrder BY_PALETTE = PrintOrder::byPalette;
+    
+    /**
+     * Alternates between the heaviest and the lightest remaining cells (by printed shape count),
+     *  so that long runs of heavy cells do not stall the printer.
+     */
+    PrintOrder BALANCED = PrintOrder::balanced;
+    
+    /**
+     * Orders the cells along a Hilbert curve over the cell grid, which keeps consecutive cells adjacent,
+     *  and adjacent cells tend to share tints.
+     */
+    PrintOrder HILBERT = cells -> sortedCopy(cells, Comparator.comparingLong(PrintOrder::hilbertIndex));
+    
+    /**
+     * Arranges the given cells into the order in which they should be printed.
+     * @param cells the cells to arrange; this collection is not modified.
+     * @return a new list holding each of the given cells exactly once.
+     */
+    List<Cell> arrange(Collection<Cell> cells);
+    
+    /**
+     * Gets the ordering that starts from the given corner, as {@link Orderable2D#compByParam}.
+     * @param corner the corner in which the first cell resides; null for {@link Orderable2D#DEFAULT}.
+     * @return an ordering that sorts cells row by row from the given corner.
+     */
+    static PrintOrder fromCorner(
+            Orderable2D.@Nullable AscendFrom corner
+    ) {
+        return cells -> sortedCopy(cells, (a, b) -> Orderable2D.compByParam(
+                a.getX(), a.getY(), b.getX(), b.getY(), corner));
+    }
+    
+    /**
+     * Parses the name of an ordering: the name of an {@link Orderable2D.AscendFrom} corner,
+     *  or one of "palette", "balanced", or "hilbert" (case-insensitive).
+     * @param name the name to parse.
+     * @return the named ordering.
+     * @throws IllegalArgumentException if no ordering has the given name.
+     */
+    static PrintOrder parse(
+            String name
+    ) {
+        String upper = name.toUpperCase(Locale.ROOT);
+        return switch (upper) {
+            case "PALETTE", "BY_PALETTE" -> BY_PALETTE;
+            case "BALANCED" -> BALANCED;
+            case "HILBERT" -> HILBERT;
+            default -> fromCorner( Orderable2D.AscendFrom.valueOf(upper) );
+        };
+    }
+    
+    private static List<Cell> sortedCopy(
+            Collection<Cell> cells,
+            Comparator<Cell> comparator
+    ) {
+        List<Cell> res = new ArrayList<>(cells);
+        res.sort(comparator);
+        return res;
+    }
+    
+    private static List<Cell> byPalette(
+            Collection<Cell> cells
+    ) {
+        Map<Integer, List<Cell>> groups = new LinkedHashMap<>();
+        for (Cell cell : sortedCopy(cells, Cell::order2D)) {
+            groups.computeIfAbsent(cell.dominantTint(), k -> new ArrayList<>()).add(cell);
+        }
+        
+        List<Cell> res = new ArrayList<>(cells.size());
+        groups.values().forEach(res::addAll);
+        return res;
+    }
+    
+    private static List<Cell> balanced(
+            Collection<Cell> cells
+    ) {
+        List<Cell> byWeight = sortedCopy(cells, Comparator.comparingInt(Cell::printedShapeCount)
+                .thenComparing(Cell::order2D));
+        
+        List<Cell> res = new ArrayList<>(byWeight.size());
+        int light = 0;
+        int heavy = byWeight.size() - 1;
+        while (light <= heavy) {
+            res.add( byWeight.get(heavy--) );
+            if (light <= heavy) {
+                res.add( byWeight.get(light++) );
+            }
+        }
+        return res;
+    }
+    
+    /**
+     * Computes the distance of the given cell along a Hilbert curve that covers its grid.
+     * The curve covers the square of side 2^31, as coordinates are ints, so that any grid fits inside it.
+     */
+    private static long hilbertIndex(
+            Cell cell
+    ) {
+        // Points are defined from 1, not 0.
+        long x = cell.getX() - 1;
+        long y = cell.getY() - 1;
+        long side = 1L << 31;
+        long d = 0;
+        for (long s = side >> 1; s > 0; s >>= 1) {
+            long rx = ((x & s) > 0) ? 1 : 0;
+            long ry = ((y & s) > 0) ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+            // Rotate the quadrant, so that the curve stays continuous
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = side - 1 - x;
+                    y = side - 1 - y;
+                }
+                long t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+}
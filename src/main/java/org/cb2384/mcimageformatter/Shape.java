@@ -180,4 +180,31 @@ public class Shape
         return "{minX=" + xMin + ",minY=" + yMin + ",maxX=" + xMax + ",maxY=" + yMax + ",tint=0x" + colorHS + '}';
     }
     
+    /**
+     * Outputs this shape in the compact mode of {@link ExportFormat#COMPACT}, as a positional Lua array,
+     *  with its color given as an index into a palette declared elsewhere.
+     * The values are, in order: the palette index, xMin, yMin, xMax, and yMax;
+     *  trailing bounds that are at their defaults, 0 for a lower bound and {@link Util#CELL_SIZE} for an upper bound,
+     *  are left out, so a shape covering the whole cell is just {index}.
+     * For a shape that is one pixel at 0,0 and with the first color of the palette, the output would be: {1,0,0,1,1}.
+     * @param paletteIndex the index of the color of this shape in the palette, from 1 as in Lua.
+     * @return a String containing a pair of braces, within which are the values described above.
+     */
+    String exportCompact(
+            @Positive int paletteIndex
+    ) {
+        int[] values = {paletteIndex, xMin, yMin, xMax, yMax};
+        int[] defaults = {paletteIndex, 0, 0, CELL_SIZE, CELL_SIZE};
+        int length = values.length;
+        while (length > 1 && values[length - 1] == defaults[length - 1]) {
+            length--;
+        }
+        
+        StringBuilder resBuilder = new StringBuilder().append('{').append(paletteIndex);
+        for (int i = 1; i < length; i++) {
+            resBuilder.append(',').append(values[i]);
+        }
+        return resBuilder.append('}').toString();
+    }
+    
 }
@@ -0,0 +1,496 @@
+package org.cb2384.mcimageformatter;
+
+import static org.cb2384.mcimageformatter.Util.CELL_SIZE;
+import static org.cb2384.mcimageformatter.Util.CELL_SIZE_MINUS_ONE;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Simplifies the decomposition of a {@link Cell} that has more printed shapes than its budget,
+ *  as set by {@link DecompositionOptions#withShapeBudget}, by merging neighboring shapes, cheapest first.
+ * Two touching shapes merge, along with any other shapes in the smallest rectangle that holds both,
+ *  into that rectangle, colored with the mean of its opaque pixels.
+ * The cost of a merge is how much it adds to the squared CIELAB error of the pixels it covers,
+ *  plus a fixed, high cost for each transparent pixel that it makes opaque; the cheapest merge is taken first.
+ * A printed shape is merged with only transparent ones when no other merge is left,
+ *  since that does not reduce the count but may make way for merges that do;
+ *  likewise, a merge that would leave fewer printed shapes than the budget is taken only as a last resort.
+ * The sums behind each cost are read from summed-area tables, and queued merges are only rechecked
+ *  when taken, so each merge costs little more than the area of its rectangle.
+ */
+final class ShapeSimplifier {
+    
+    private static final int PIXELS = CELL_SIZE * CELL_SIZE;
+    
+    private static final int SIDE = CELL_SIZE + 1;
+    
+    /**
+     * Cost of making a transparent pixel opaque; the square of the greatest difference in lightness.
+     */
+    private static final double TRANSPARENT_COST = 100.0 * 100.0;
+    
+    private final int@ArrayLen(PIXELS)[] pixels;
+    
+    private final float[] lab;
+    
+    // Summed-area tables, indexed by y * SIDE + x, of the pixels left of x and below y
+    private final int[] sumOpaque = new int[SIDE * SIDE];
+    
+    private final long[] sumRed = new long[SIDE * SIDE];
+    
+    private final long[] sumGreen = new long[SIDE * SIDE];
+    
+    private final long[] sumBlue = new long[SIDE * SIDE];
+    
+    private final double[] sumL = new double[SIDE * SIDE];
+    
+    private final double[] sumA = new double[SIDE * SIDE];
+    
+    private final double[] sumB = new double[SIDE * SIDE];
+    
+    private final double[] sumSquares = new double[SIDE * SIDE];
+    
+    /**
+     * Index in {@link #shapes} of the shape covering each pixel, indexed by y * CELL_SIZE + x, y from the bottom.
+     */
+    private final int[] owner = new int[PIXELS];
+    
+    /**
+     * Every shape so far, by index; merged shapes are replaced by null.
+     */
+    private final List<@Nullable Shape> shapes = new ArrayList<>();
+    
+    private final PriorityQueue<Merge> merges = new PriorityQueue<>();
+    
+    private @NonNegative int printed;
+    
+    /**
+     * Stamp of each shape index, for collecting distinct indices without allocating a set.
+     */
+    private final int[] seen = new int[PIXELS + PIXELS];
+    
+    private int stamp;
+    
+    private long sequence;
+    
+    /**
+     * A candidate merge of the shapes of the given indices, which together fill a rectangle.
+     */
+    private static final class Merge
+            implements Comparable<Merge> {
+        
+        private final int[] ids;
+        
+        private final @NonNegative int removed;
+        
+        private final double cost;
+        
+        private final long sequence;
+        
+        private Merge(
+                int[] ids,
+                @NonNegative int removed,
+                double cost,
+                long sequence
+        ) {
+            this.ids = ids;
+            this.removed = removed;
+            this.cost = cost;
+            this.sequence = sequence;
+        }
+        
+        /**
+         * Orders merges by cost, except that merges that remove no printed shape come last.
+         */
+        public int compareTo(
+                Merge that
+        ) {
+            if ((removed == 0) != (that.removed == 0)) {
+                return (removed == 0) ? 1 : -1;
+            }
+            //else
+            int res = Double.compare(cost, that.cost);
+            return (res == 0) ?
+                    Long.compare(sequence, that.sequence) :
+                    res;
+        }
+    }
+    
+    private ShapeSimplifier(
+            int@ArrayLen(PIXELS)[] pixels
+    ) {
+        this.pixels = pixels;
+        lab = TolerantDecomposer.toLab(pixels);
+        
+        for (int y = 0; y < CELL_SIZE; y++) {
+            int row = CELL_SIZE_MINUS_ONE - y;
+            for (int x = 0; x < CELL_SIZE; x++) {
+                int i = row * CELL_SIZE + x;
+                int color = pixels[i];
+                int to = (y + 1) * SIDE + (x + 1);
+                int left = (y + 1) * SIDE + x;
+                int below = y * SIDE + (x + 1);
+                int corner = y * SIDE + x;
+                
+                boolean opaque = color != 0;
+                float l = opaque ? lab[i * 3] : 0;
+                float a = opaque ? lab[i * 3 + 1] : 0;
+                float b = opaque ? lab[i * 3 + 2] : 0;
+                sumOpaque[to] = sumOpaque[left] + sumOpaque[below] - sumOpaque[corner] + (opaque ? 1 : 0);
+                sumRed[to] = sumRed[left] + sumRed[below] - sumRed[corner] + ((color >>> 16) & 0xFF);
+                sumGreen[to] = sumGreen[left] + sumGreen[below] - sumGreen[corner] + ((color >>> 8) & 0xFF);
+                sumBlue[to] = sumBlue[left] + sumBlue[below] - sumBlue[corner] + (color & 0xFF);
+                sumL[to] = sumL[left] + sumL[below] - sumL[corner] + l;
+                sumA[to] = sumA[left] + sumA[below] - sumA[corner] + a;
+                sumB[to] = sumB[left] + sumB[below] - sumB[corner] + b;
+                sumSquares[to] = sumSquares[left] + sumSquares[below] - sumSquares[corner]
+                        + (l * l + a * a + b * b);
+            }
+        }
+    }
+    
+    /**
+     * Simplifies the given decomposition until it has no more printed shapes than the budget.
+     * @param sRGBColorArray the pixels of the cell, row by row from the top, with alpha already masked.
+     * @param decomposition the decomposition to simplify.
+     * @param budget the greatest number of printed shapes; must be positive.
+     * @return the simplified decomposition, whose unsimplified count is that of the given decomposition.
+     */
+    static Decomposition simplify(
+            int@ArrayLen(PIXELS)[] sRGBColorArray,
+            Decomposition decomposition,
+            @Positive int budget
+    ) {
+        ShapeSimplifier simplifier = new ShapeSimplifier(sRGBColorArray);
+        for (Shape shape : decomposition.shapeSet) {
+            simplifier.place(shape);
+        }
+        for (int id = 0; id < simplifier.shapes.size(); id++) {
+            simplifier.offerNeighbors(id);
+        }
+        
+        // Merges that would remove more printed shapes than needed are held back, as long as there are others
+        PriorityQueue<Merge> overshooting = new PriorityQueue<>();
+        while (simplifier.printed > budget) {
+            Merge merge = simplifier.merges.poll();
+            if (merge == null) {
+                merge = overshooting.poll();
+                assert merge != null : "Over budget with no merge left";
+            } else if (merge.removed > simplifier.printed - budget) {
+                overshooting.add(merge);
+                continue;
+            }
+            //else
+            if (simplifier.isValid(merge)) {
+                simplifier.replace(merge.ids);
+            }
+        }
+        
+        return simplifier.result(decomposition.unsimplifiedShapeCount);
+    }
+    
+    private @NonNegative int place(
+            Shape shape
+    ) {
+        int id = shapes.size();
+        shapes.add(shape);
+        for (int y = shape.getYMin(); y < shape.getYMax(); y++) {
+            for (int x = shape.getXMin(); x < shape.getXMax(); x++) {
+                owner[y * CELL_SIZE + x] = id;
+            }
+        }
+        if (shape.getColor() != 0) {
+            printed++;
+        }
+        return id;
+    }
+    
+    /**
+     * Queues a merge of the shape of the given index with each shape that touches one of its sides.
+     */
+    private void offerNeighbors(
+            @NonNegative int id
+    ) {
+        Shape shape = shapes.get(id);
+        assert shape != null;
+        int xMin = shape.getXMin();
+        int xMax = shape.getXMax();
+        int yMin = shape.getYMin();
+        int yMax = shape.getYMax();
+        
+        stamp++;
+        seen[id] = stamp;
+        for (int y = yMin; y < yMax; y++) {
+            if (xMin > 0) {
+                offerOnce(id, owner[y * CELL_SIZE + xMin - 1]);
+            }
+            if (xMax < CELL_SIZE) {
+                offerOnce(id, owner[y * CELL_SIZE + xMax]);
+            }
+        }
+        for (int x = xMin; x < xMax; x++) {
+            if (yMin > 0) {
+                offerOnce(id, owner[(yMin - 1) * CELL_SIZE + x]);
+            }
+            if (yMax < CELL_SIZE) {
+                offerOnce(id, owner[yMax * CELL_SIZE + x]);
+            }
+        }
+    }
+    
+    private void offerOnce(
+            @NonNegative int id,
+            @NonNegative int neighbor
+    ) {
+        if (seen[neighbor] != stamp) {
+            seen[neighbor] = stamp;
+            offer(id, neighbor);
+        }
+    }
+    
+    /**
+     * Queues the merge of the given shapes, along with every shape in the smallest rectangle that holds both,
+     *  so that the merged shapes fill that rectangle exactly. Merges of two transparent shapes are skipped.
+     */
+    private void offer(
+            @NonNegative int first,
+            @NonNegative int second
+    ) {
+        Shape a = shapes.get(first);
+        Shape b = shapes.get(second);
+        assert a != null && b != null;
+        if (a.getColor() == 0 && b.getColor() == 0) {
+            return;
+        }
+        //else
+        int[] box = closure(Math.min(a.getXMin(), b.getXMin()), Math.max(a.getXMax(), b.getXMax()),
+                Math.min(a.getYMin(), b.getYMin()), Math.max(a.getYMax(), b.getYMax()));
+        int[] ids = contained(box);
+        double cost = cost(box[0], box[1], box[2], box[3]);
+        int printedIds = 0;
+        for (int id : ids) {
+            Shape shape = shapes.get(id);
+            cost -= cost(shape);
+            if (shape != null && shape.getColor() != 0) {
+                printedIds++;
+            }
+        }
+        merges.add( new Merge(ids, printedIds - 1, cost, sequence++) );
+    }
+    
+    /**
+     * Determines if a queued merge still applies: if none of its shapes has since been merged away,
+     *  then nothing else in its rectangle has changed either.
+     */
+    private boolean isValid(
+            Merge merge
+    ) {
+        for (int id : merge.ids) {
+            if (shapes.get(id) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Grows the given rectangle until every shape that it overlaps lies entirely within it.
+     * @return the bounds of the grown rectangle, as xMin, xMax, yMin, yMax.
+     */
+    private int@ArrayLen(4)[] closure(
+            int xMin,
+            int xMax,
+            int yMin,
+            int yMax
+    ) {
+        int[] box = {xMin, xMax, yMin, yMax};
+        boolean grown = true;
+        while (grown) {
+            grown = false;
+            for (int y = box[2]; y < box[3]; y++) {
+                for (int x = box[0]; x < box[1]; x++) {
+                    Shape shape = shapes.get(owner[y * CELL_SIZE + x]);
+                    assert shape != null;
+                    if (shape.getXMin() < box[0] || shape.getXMax() > box[1]
+                            || shape.getYMin() < box[2] || shape.getYMax() > box[3]) {
+                        box[0] = Math.min(box[0], shape.getXMin());
+                        box[1] = Math.max(box[1], shape.getXMax());
+                        box[2] = Math.min(box[2], shape.getYMin());
+                        box[3] = Math.max(box[3], shape.getYMax());
+                        grown = true;
+                    }
+                }
+            }
+        }
+        return box;
+    }
+    
+    private int[] contained(
+            int@ArrayLen(4)[] box
+    ) {
+        stamp++;
+        int[] res = new int[(box[1] - box[0]) * (box[3] - box[2])];
+        int count = 0;
+        for (int y = box[2]; y < box[3]; y++) {
+            for (int x = box[0]; x < box[1]; x++) {
+                int id = owner[y * CELL_SIZE + x];
+                if (seen[id] != stamp) {
+                    seen[id] = stamp;
+                    res[count++] = id;
+                }
+            }
+        }
+        return Arrays.copyOf(res, count);
+    }
+    
+    /**
+     * Replaces the shapes of the given indices, which together fill a rectangle,
+     *  with one printed shape of that rectangle, and queues the merges of the new shape.
+     */
+    private void replace(
+            int[] ids
+    ) {
+        int xMin = CELL_SIZE;
+        int xMax = 0;
+        int yMin = CELL_SIZE;
+        int yMax = 0;
+        for (int id : ids) {
+            Shape shape = shapes.set(id, null);
+            assert shape != null;
+            xMin = Math.min(xMin, shape.getXMin());
+            xMax = Math.max(xMax, shape.getXMax());
+            yMin = Math.min(yMin, shape.getYMin());
+            yMax = Math.max(yMax, shape.getYMax());
+            if (shape.getColor() != 0) {
+                printed--;
+            }
+        }
+        offerNeighbors( place(new Shape(xMin, xMax, yMin, yMax, meanColor(xMin, xMax, yMin, yMax))) );
+    }
+    
+    private double cost(
+            @Nullable Shape shape
+    ) {
+        return (shape == null || shape.getColor() == 0) ?
+                0 :
+                cost(shape.getXMin(), shape.getXMax(), shape.getYMin(), shape.getYMax());
+    }
+    
+    /**
+     * The cost of printing the given rectangle as one color: the squared CIELAB error of its opaque pixels
+     *  about their mean, plus the cost of each transparent pixel.
+     */
+    private double cost(
+            int xMin,
+            int xMax,
+            int yMin,
+            int yMax
+    ) {
+        int opaque = sum(sumOpaque, xMin, xMax, yMin, yMax);
+        int transparent = (xMax - xMin) * (yMax - yMin) - opaque;
+        if (opaque == 0) {
+            return TRANSPARENT_COST * transparent;
+        }
+        //else
+        double l = sum(sumL, xMin, xMax, yMin, yMax);
+        double a = sum(sumA, xMin, xMax, yMin, yMax);
+        double b = sum(sumB, xMin, xMax, yMin, yMax);
+        double error = sum(sumSquares, xMin, xMax, yMin, yMax) - (l * l + a * a + b * b) / opaque;
+        return Math.max(error, 0) + TRANSPARENT_COST * transparent;
+    }
+    
+    private int meanColor(
+            int xMin,
+            int xMax,
+            int yMin,
+            int yMax
+    ) {
+        long count = sum(sumOpaque, xMin, xMax, yMin, yMax);
+        long r = sum(sumRed, xMin, xMax, yMin, yMax);
+        long g = sum(sumGreen, xMin, xMax, yMin, yMax);
+        long b = sum(sumBlue, xMin, xMax, yMin, yMax);
+        return 0xFF_00_00_00
+                | (int) ((r + count / 2) / count) << 16
+                | (int) ((g + count / 2) / count) << 8
+                | (int) ((b + count / 2) / count);
+    }
+    
+    private static int sum(
+            int[] table,
+            int xMin,
+            int xMax,
+            int yMin,
+            int yMax
+    ) {
+        return table[yMax * SIDE + xMax] - table[yMin * SIDE + xMax]
+                - table[yMax * SIDE + xMin] + table[yMin * SIDE + xMin];
+    }
+    
+    private static long sum(
+            long[] table,
+            int xMin,
+            int xMax,
+            int yMin,
+            int yMax
+    ) {
+        return table[yMax * SIDE + xMax] - table[yMin * SIDE + xMax]
+                - table[yMax * SIDE + xMin] + table[yMin * SIDE + xMin];
+    }
+    
+    private static double sum(
+            double[] table,
+            int xMin,
+            int xMax,
+            int yMin,
+            int yMax
+    ) {
+        return table[yMax * SIDE + xMax] - table[yMin * SIDE + xMax]
+                - table[yMax * SIDE + xMin] + table[yMin * SIDE + xMin];
+    }
+    
+    /**
+     * Collects the remaining shapes, and measures the greatest CIE76 &Delta;E between an opaque pixel
+     *  and the color of the shape covering it.
+     */
+    private Decomposition result(
+            @NonNegative int unsimplifiedShapeCount
+    ) {
+        NavigableSet<Shape> shapeSet = Util.createNavigableSet();
+        double maxError = 0;
+        float[] colorLab = new float[3];
+        for (Shape shape : shapes) {
+            if (shape == null) {
+                continue;
+            }
+            //else
+            shapeSet.add(shape);
+            int color = shape.getColor();
+            if (color == 0) {
+                continue;
+            }
+            //else
+            TolerantDecomposer.toLab(color, colorLab, 0);
+            for (int y = shape.getYMin(); y < shape.getYMax(); y++) {
+                int row = CELL_SIZE_MINUS_ONE - y;
+                for (int x = shape.getXMin(); x < shape.getXMax(); x++) {
+                    int i = row * CELL_SIZE + x;
+                    if (pixels[i] != 0) {
+                        double dl = lab[i * 3] - colorLab[0];
+                        double da = lab[i * 3 + 1] - colorLab[1];
+                        double db = lab[i * 3 + 2] - colorLab[2];
+                        maxError = Math.max(maxError, Math.sqrt(dl * dl + da * da + db * db));
+                    }
+                }
+            }
+        }
+        return new Decomposition(shapeSet, (float) maxError, unsimplifiedShapeCount);
+    }
+}
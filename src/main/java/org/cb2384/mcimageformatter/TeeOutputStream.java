@@ -0,0 +1,69 @@
+package org.cb2384.mcimageformatter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Writes everything written to it to one output and, as it goes, to any number of others,
+ *  such as a {@link ChunkedUploader.Upload} fed from the same bytes as an output file.
+ * Only the first output is closed with this stream; the others are left to be finished by their owners.
+ */
+final class TeeOutputStream extends OutputStream {
+    
+    private final OutputStream first;
+    
+    private final List<OutputStream> others;
+    
+    /**
+     * Builds a stream writing to the given outputs.
+     * @param first the output that is closed with this stream.
+     * @param others the other outputs; nulls are skipped.
+     */
+    TeeOutputStream(
+            OutputStream first,
+            @Nullable OutputStream... others
+    ) {
+        this.first = first;
+        this.others = Arrays.stream(others)
+                .filter(Objects::nonNull)
+                .toList();
+    }
+    
+    public void write(
+            int b
+    ) throws IOException {
+        first.write(b);
+        for (OutputStream other : others) {
+            other.write(b);
+        }
+    }
+    
+    public void write(
+            byte[] b,
+            @NonNegative int off,
+            @NonNegative int len
+    ) throws IOException {
+        first.write(b, off, len);
+        for (OutputStream other : others) {
+            other.write(b, off, len);
+        }
+    }
+    
+    public void flush() throws IOException {
+        first.flush();
+        for (OutputStream other : others) {
+            other.flush();
+        }
+    }
+    
+    public void close() throws IOException {
+        first.close();
+    }
+}
@@ -0,0 +1,275 @@
+package org.cb2384.mcimageformatter;
+
+import static org.cb2384.mcimageformatter.Util.CELL_SIZE;
+import static org.cb2384.mcimageformatter.Util.CELL_SIZE_MINUS_ONE;
+
+import java.util.NavigableSet;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Decomposes the pixels of a {@link Cell} into {@link Shape}s, merging colors that are close rather than equal,
+ *  as set by {@link DecompositionOptions#withColorTolerance}.
+ * The merge follows the same two passes as the exact decomposition:
+ *  first each row is split into runs, each pixel of which is within the tolerance of the first pixel of the run;
+ *  then each run is stacked onto the run below it if they have the same bounds
+ *  and every pixel of the run is within the tolerance of the first pixel of the stack.
+ * Every pixel of a stack is thus within the tolerance of its first pixel, not merely of the first of its run.
+ * Each stack becomes one shape, with the representative color of its pixels.
+ * Colors are compared in CIELAB space, under the CIE76 &Delta;E metric.
+ */
+final class TolerantDecomposer {
+    
+    private static final int PIXELS = CELL_SIZE * CELL_SIZE;
+    
+    /**
+     * sRGB channel value to linear light, for each of the 256 values.
+     */
+    private static final double[] LINEAR = new double[256];
+    
+    static {
+        for (int i = 0; i < LINEAR.length; i++) {
+            double c = i / 255.0;
+            LINEAR[i] = (c <= 0.04045) ?
+                    c / 12.92 :
+                    Math.pow((c + 0.055) / 1.055, 2.4);
+        }
+    }
+    
+    private final double maxDistanceSquared;
+    
+    private final DecompositionOptions.Representative representative;
+    
+    private final NavigableSet<Shape> shapeSet = Util.createNavigableSet();
+    
+    private double maxError;
+    
+    private TolerantDecomposer(
+            DecompositionOptions options
+    ) {
+        double maxDistance = options.getMaxColorDistance();
+        maxDistanceSquared = maxDistance * maxDistance;
+        representative = options.getRepresentative();
+    }
+    
+    /**
+     * Decomposes the given pixels.
+     * @param sRGBColorArray the pixels of the cell, row by row from the top, with alpha already masked.
+     * @param options the color tolerance and representative to use.
+     * @return the shapes that make up the cell, and the greatest color error among them.
+     */
+    static Decomposition decompose(
+            int@ArrayLen(PIXELS)[] sRGBColorArray,
+            DecompositionOptions options
+    ) {
+        TolerantDecomposer decomposer = new TolerantDecomposer(options);
+        decomposer.process(sRGBColorArray, toLab(sRGBColorArray));
+        return new Decomposition(decomposer.shapeSet, (float) decomposer.maxError);
+    }
+    
+    private void process(
+            int@ArrayLen(PIXELS)[] pixels,
+            float[] lab
+    ) {
+        // Open stacks of the previous row, indexed by their xMin: xMax (0 if none), index of the first pixel, yMin
+        int[] prevXMax = new int[CELL_SIZE];
+        int[] prevAnchor = new int[CELL_SIZE];
+        int[] prevYMin = new int[CELL_SIZE];
+        int[] currXMax = new int[CELL_SIZE];
+        int[] currAnchor = new int[CELL_SIZE];
+        int[] currYMin = new int[CELL_SIZE];
+        
+        // Shapes count y from the bottom, so the bottom row of the image comes first
+        for (int y = 0; y < CELL_SIZE; y++) {
+            int row = CELL_SIZE_MINUS_ONE - y;
+            for (int x = 0; x < CELL_SIZE;) {
+                int anchor = row * CELL_SIZE + x;
+                int xMin = x++;
+                while (x < CELL_SIZE && close(pixels, lab, anchor, row * CELL_SIZE + x)) {
+                    x++;
+                }
+                
+                currXMax[xMin] = x;
+                if (prevXMax[xMin] == x && closeRun(pixels, lab, prevAnchor[xMin], anchor, x - xMin)) {
+                    currAnchor[xMin] = prevAnchor[xMin];
+                    currYMin[xMin] = prevYMin[xMin];
+                    prevXMax[xMin] = 0;
+                } else {
+                    currAnchor[xMin] = anchor;
+                    currYMin[xMin] = y;
+                }
+            }
+            
+            closeStacks(pixels, lab, prevXMax, prevAnchor, prevYMin, y);
+            
+            int[] temp = prevXMax;
+            prevXMax = currXMax;
+            currXMax = temp;
+            temp = prevAnchor;
+            prevAnchor = currAnchor;
+            currAnchor = temp;
+            temp = prevYMin;
+            prevYMin = currYMin;
+            currYMin = temp;
+        }
+        closeStacks(pixels, lab, prevXMax, prevAnchor, prevYMin, CELL_SIZE);
+    }
+    
+    /**
+     * Adds a shape for each stack that is still open, measures its error, and clears them.
+     */
+    private void closeStacks(
+            int@ArrayLen(PIXELS)[] pixels,
+            float[] lab,
+            int@ArrayLen(CELL_SIZE)[] xMaxes,
+            int@ArrayLen(CELL_SIZE)[] anchors,
+            int@ArrayLen(CELL_SIZE)[] yMins,
+            @IntRange(from = 1, to = CELL_SIZE) int yMax
+    ) {
+        for (int xMin = 0; xMin < CELL_SIZE; xMin++) {
+            int xMax = xMaxes[xMin];
+            if (xMax == 0) {
+                continue;
+            }
+            //else
+            xMaxes[xMin] = 0;
+            int yMin = yMins[xMin];
+            int color = pixels[anchors[xMin]];
+            if (color != 0 && representative == DecompositionOptions.Representative.MEAN) {
+                color = mean(pixels, xMin, xMax, yMin, yMax);
+            }
+            shapeSet.add( new Shape(xMin, xMax, yMin, yMax, color) );
+            
+            if (color != 0) {
+                float[] colorLab = new float[3];
+                toLab(color, colorLab, 0);
+                for (int y = yMin; y < yMax; y++) {
+                    int row = CELL_SIZE_MINUS_ONE - y;
+                    for (int x = xMin; x < xMax; x++) {
+                        int i = (row * CELL_SIZE + x) * 3;
+                        double dl = lab[i] - colorLab[0];
+                        double da = lab[i + 1] - colorLab[1];
+                        double db = lab[i + 2] - colorLab[2];
+                        maxError = Math.max(maxError, Math.sqrt(dl * dl + da * da + db * db));
+                    }
+                }
+            }
+        }
+    }
+    
+    private static int mean(
+            int@ArrayLen(PIXELS)[] pixels,
+            int xMin,
+            int xMax,
+            int yMin,
+            int yMax
+    ) {
+        long r = 0;
+        long g = 0;
+        long b = 0;
+        for (int y = yMin; y < yMax; y++) {
+            int row = CELL_SIZE_MINUS_ONE - y;
+            for (int x = xMin; x < xMax; x++) {
+                int color = pixels[row * CELL_SIZE + x];
+                r += (color >>> 16) & 0xFF;
+                g += (color >>> 8) & 0xFF;
+                b += color & 0xFF;
+            }
+        }
+        long count = (long) (xMax - xMin) * (yMax - yMin);
+        return 0xFF_00_00_00
+                | (int) ((r + count / 2) / count) << 16
+                | (int) ((g + count / 2) / count) << 8
+                | (int) ((b + count / 2) / count);
+    }
+    
+    /**
+     * Determines if a run may be stacked onto a stack: every pixel of the run is close to the first of the stack,
+     *  so that no pixel of the stack is further from it than the tolerance.
+     */
+    private boolean closeRun(
+            int@ArrayLen(PIXELS)[] pixels,
+            float[] lab,
+            int stackAnchor,
+            int runStart,
+            @Positive int runLength
+    ) {
+        for (int i = runStart; i < runStart + runLength; i++) {
+            if (!close(pixels, lab, stackAnchor, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Determines if two pixels may be merged: both transparent, or both opaque and within the tolerance.
+     */
+    private boolean close(
+            int@ArrayLen(PIXELS)[] pixels,
+            float[] lab,
+            int i,
+            int j
+    ) {
+        int a = pixels[i];
+        int b = pixels[j];
+        if (a == b) {
+            return true;
+        }
+        //else
+        if (a == 0 || b == 0) {
+            return false;
+        }
+        //else
+        double dl = lab[i * 3] - lab[j * 3];
+        double da = lab[i * 3 + 1] - lab[j * 3 + 1];
+        double db = lab[i * 3 + 2] - lab[j * 3 + 2];
+        return dl * dl + da * da + db * db <= maxDistanceSquared;
+    }
+    
+    /**
+     * Converts each of the given colors to CIELAB.
+     * @param pixels the colors to convert.
+     * @return the L*, a*, and b* of each color in turn.
+     */
+    static float[] toLab(
+            int@ArrayLen(PIXELS)[] pixels
+    ) {
+        float[] lab = new float[pixels.length * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            toLab(pixels[i], lab, i * 3);
+        }
+        return lab;
+    }
+    
+    /**
+     * Converts an sRGB color to CIELAB, under the D65 white point.
+     */
+    static void toLab(
+            int sRGBColor,
+            float[] lab,
+            @NonNegative int offset
+    ) {
+        double r = LINEAR[(sRGBColor >>> 16) & 0xFF];
+        double g = LINEAR[(sRGBColor >>> 8) & 0xFF];
+        double b = LINEAR[sRGBColor & 0xFF];
+        
+        double fx = labF( (0.4124 * r + 0.3576 * g + 0.1805 * b) / 0.95047 );
+        double fy = labF( 0.2126 * r + 0.7152 * g + 0.0722 * b );
+        double fz = labF( (0.0193 * r + 0.1192 * g + 0.9505 * b) / 1.08883 );
+        
+        lab[offset] = (float) (116 * fy - 16);
+        lab[offset + 1] = (float) (500 * (fx - fy));
+        lab[offset + 2] = (float) (200 * (fy - fz));
+    }
+    
+    private static double labF(
+            double t
+    ) {
+        return (t > 216.0 / 24389) ?
+                Math.cbrt(t) :
+                (24389.0 / 27 * t + 16) / 116;
+    }
+}
@@ -0,0 +1,42 @@
+package org.cb2384.mcimageformatter;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.checkerframework.checker.index.qual.*;
+import org.checkerframework.checker.nullness.qual.*;
+import org.checkerframework.common.value.qual.*;
+
+/**
+ * Somewhere that a {@link ChunkedUploader} can send the chunks of an export to.
+ * Implementations must be safe to call from several threads at once, as chunks are uploaded concurrently.
+ * An implementation may throw {@link IOException} for any failure that is worth retrying;
+ *  any other exception aborts the upload.
+ * @see HttpUploadEndpoint
+ */
+public interface UploadEndpoint {
+    
+    /**
+     * Uploads one chunk.
+     * @param index the position of this chunk in the export, from 0.
+     * @param chunk the bytes of the chunk; not to be modified.
+     * @return an id by which the endpoint knows this chunk.
+     * @throws IOException if the upload failed, and may be retried.
+     */
+    String uploadChunk(
+            @NonNegative int index,
+            byte[] chunk
+    ) throws IOException;
+    
+    /**
+     * Records the manifest of a completed upload, after every chunk has been uploaded.
+     * @param chunkIds the ids of every chunk, in the order in which they are to be concatenated.
+     * @param totalBytes the combined length of every chunk.
+     * @return an id by which the endpoint knows the whole upload.
+     * @throws IOException if the commit failed, and may be retried.
+     */
+    String commit(
+            List<String> chunkIds,
+            @NonNegative long totalBytes
+    ) throws IOException;
+}
@@ -126,20 +126,4 @@ public class Util {
         WritableRaster raster = image.copyData( image.getRaster().createCompatibleWritableRaster() );
         return new BufferedImage(image.getColorModel(), raster, image.isAlphaPremultiplied(), null);
     }
-    
-    static BufferedImage correctAlpha(
-            BufferedImage image
-    ) {
-        int height = image.getHeight();
-        int width = image.getWidth();
-        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
-        
-        for (int i = 0; i < pixels.length; i++) {
-            pixels[i] = maskAlpha(pixels[i]);
-        }
-        
-        BufferedImage resImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-        resImage.setRGB(0, 0, width, height, pixels, 0, width);
-        return resImage;
-    }
 }
@@ -0,0 +1,257 @@
+package org.cb2384.mcimageformatter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs a {@link ChunkedUploader} through an {@link HttpUploadEndpoint} against an in-process HTTP stub.
+ */
+class ChunkedUploaderTest {
+    
+    private static final String SEPARATOR = System.lineSeparator();
+    
+    private static final int CHUNK_BYTES = 64;
+    
+    private static final int MAX_IN_FLIGHT = 2;
+    
+    private HttpServer server;
+    
+    private URI base;
+    
+    private final Map<String, byte[]> chunks = new ConcurrentHashMap<>();
+    
+    private final Map<Integer, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    
+    /**
+     * Chunk indexes whose first attempt is answered with 503.
+     */
+    private final Set<Integer> failOnce = ConcurrentHashMap.newKeySet();
+    
+    private final AtomicInteger inFlight = new AtomicInteger();
+    
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    
+    private volatile boolean failAll;
+    
+    private volatile String manifest;
+    
+    private volatile long manifestBytes = -1;
+    
+    @BeforeEach
+    void startStub() throws IOException {
+        server = HttpServer.create( new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0 );
+        server.setExecutor( Executors.newCachedThreadPool() );
+        server.createContext("/up/chunks", this::handleChunk);
+        server.createContext("/up/manifest", this::handleManifest);
+        server.start();
+        base = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/up");
+    }
+    
+    @AfterEach
+    void stopStub() {
+        server.stop(0);
+    }
+    
+    private void handleChunk(
+            HttpExchange exchange
+    ) throws IOException {
+        int now = inFlight.incrementAndGet();
+        maxInFlight.accumulateAndGet(now, Math::max);
+        try {
+            int index = Integer.parseInt( query(exchange, "index") );
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            int attempt = attempts.computeIfAbsent(index, i -> new AtomicInteger()).incrementAndGet();
+            // Long enough for several chunks to be in flight at once
+            Thread.sleep(20);
+            if (failAll || (attempt == 1 && failOnce.contains(index))) {
+                respond(exchange, 503, "");
+                return;
+            }
+            //else
+            String id = "chunk-" + index;
+            chunks.put(id, body);
+            respond(exchange, 200, id);
+        } catch (InterruptedException IE) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 500, "");
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+    
+    private void handleManifest(
+            HttpExchange exchange
+    ) throws IOException {
+        manifestBytes = Long.parseLong( query(exchange, "bytes") );
+        manifest = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        respond(exchange, 200, "upload-1");
+    }
+    
+    private static String query(
+            HttpExchange exchange,
+            String name
+    ) {
+        for (String pair : exchange.getRequestURI().getQuery().split("&")) {
+            if (pair.startsWith(name + "=")) {
+                return pair.substring(name.length() + 1);
+            }
+        }
+        throw new IllegalArgumentException("No " + name + " in " + exchange.getRequestURI());
+    }
+    
+    private static void respond(
+            HttpExchange exchange,
+            int status,
+            String body
+    ) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        long length = (bytes.length == 0) ?
+                -1 :
+                bytes.length;
+        exchange.sendResponseHeaders(status, length);
+        exchange.getResponseBody().write(bytes);
+        exchange.close();
+    }
+    
+    private ChunkedUploader uploader(
+            int maxAttempts
+    ) {
+        return new ChunkedUploader( new HttpUploadEndpoint(base), CHUNK_BYTES, MAX_IN_FLIGHT, maxAttempts );
+    }
+    
+    private static List<String> lines(
+            int count
+    ) {
+        List<String> res = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            res.add( "{line " + i + "}" + "x".repeat(i % 23) );
+        }
+        return res;
+    }
+    
+    private static byte[] encode(
+            List<String> lines
+    ) {
+        StringBuilder res = new StringBuilder();
+        for (String line : lines) {
+            res.append(line).append(SEPARATOR);
+        }
+        return res.toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Concatenates the stored chunks in the order of the committed manifest.
+     */
+    private byte[] reassemble() throws IOException {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        for (String id : manifest.split("\n")) {
+            res.write( chunks.get(id) );
+        }
+        return res.toByteArray();
+    }
+    
+    @Test
+    void uploadsChunksAndCommitsTheirManifest() throws IOException {
+        List<String> lines = lines(60);
+        ChunkedUploader.Manifest result = uploader(3).upload(lines);
+        
+        byte[] expected = encode(lines);
+        assertEquals("upload-1", result.getUploadId());
+        assertEquals(expected.length, result.getTotalBytes());
+        assertEquals(expected.length, manifestBytes);
+        assertEquals(String.join("\n", result.getChunkIds()), manifest);
+        assertTrue(result.getChunkIds().size() > MAX_IN_FLIGHT);
+        assertArrayEquals(expected, reassemble());
+    }
+    
+    @Test
+    void breaksChunksBetweenLines() throws IOException {
+        List<String> lines = lines(60);
+        ChunkedUploader.Manifest result = uploader(3).upload(lines);
+        
+        for (String id : result.getChunkIds()) {
+            String chunk = new String(chunks.get(id), StandardCharsets.UTF_8);
+            assertTrue(chunk.length() <= CHUNK_BYTES, id);
+            // So each chunk also starts a line, and each line is whole in one chunk
+            assertTrue(chunk.endsWith(SEPARATOR), id);
+        }
+    }
+    
+    @Test
+    void splitsLinesLongerThanAChunk() throws IOException {
+        List<String> lines = List.of("short", "y".repeat(CHUNK_BYTES * 2 + 5), "tail");
+        ChunkedUploader.Manifest result = uploader(3).upload(lines);
+        
+        for (String id : result.getChunkIds()) {
+            assertTrue(chunks.get(id).length <= CHUNK_BYTES, id);
+        }
+        assertArrayEquals(encode(lines), reassemble());
+    }
+    
+    @Test
+    void retriesAFailedChunk() throws IOException {
+        failOnce.add(1);
+        failOnce.add(3);
+        List<String> lines = lines(60);
+        ChunkedUploader.Manifest result = uploader(3).upload(lines);
+        
+        assertEquals(2, attempts.get(1).get());
+        assertEquals(2, attempts.get(3).get());
+        assertEquals(1, attempts.get(0).get());
+        assertEquals(String.join("\n", result.getChunkIds()), manifest);
+        assertArrayEquals(encode(lines), reassemble());
+    }
+    
+    @Test
+    void failsOnceEveryAttemptHasFailed() {
+        failAll = true;
+        assertThrows( IOException.class, () -> uploader(2).upload( lines(60) ) );
+        assertNull(manifest);
+        for (AtomicInteger tries : attempts.values()) {
+            assertTrue(tries.get() <= 2);
+        }
+    }
+    
+    @Test
+    void boundsTheChunksInFlight() throws IOException {
+        uploader(3).upload( lines(200) );
+        
+        assertTrue(maxInFlight.get() <= MAX_IN_FLIGHT, "At most " + MAX_IN_FLIGHT + ", was " + maxInFlight.get());
+    }
+    
+    @Test
+    void uploadsWhatIsWrittenToAnOpenUpload() throws IOException {
+        byte[] expected = encode( lines(40) );
+        ChunkedUploader.Manifest result;
+        try (ChunkedUploader.Upload upload = uploader(3).open()) {
+            // In uneven pieces, as an output stream would be written
+            for (int off = 0; off < expected.length; off += 7) {
+                upload.write( expected, off, Math.min(7, expected.length - off) );
+            }
+            result = upload.finish();
+        }
+        
+        assertEquals(expected.length, result.getTotalBytes());
+        assertArrayEquals(expected, reassemble());
+    }
+}
@@ -0,0 +1,114 @@
+package org.cb2384.mcimageformatter;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Checks that the {@link ParallelExportEncoder} writes exactly the bytes of the sequential writer of {@link Main}.
+ */
+class ParallelExportEncoderTest {
+    
+    private static final int CELLS_WIDE = 9;
+    
+    private static final int CELLS_HIGH = 7;
+    
+    private static ForkJoinPool pool;
+    
+    private static List<Cell> cells;
+    
+    @BeforeAll
+    static void buildCells() {
+        pool = new ForkJoinPool(4);
+        // Every third Cell is left transparent, so that some Cells are not exported unless as placeholders
+        BufferedImage image = new BufferedImage( CELLS_WIDE * Util.CELL_SIZE, CELLS_HIGH * Util.CELL_SIZE,
+                BufferedImage.TYPE_INT_ARGB );
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                int cell = (y / Util.CELL_SIZE) * CELLS_WIDE + x / Util.CELL_SIZE;
+                if (cell % 3 != 0) {
+                    int band = (x + 2 * y) / 5 % 4;
+                    image.setRGB(x, y, 0xFF000000 | (cell * 0x2F1D0B + band * 0x403020) & 0xFFFFFF);
+                }
+            }
+        }
+        cells = List.copyOf( ImageTransformer.processImage(new String[6], image).seeCells() );
+    }
+    
+    @AfterAll
+    static void shutDownPool() {
+        pool.shutdown();
+    }
+    
+    private static byte[] writeSequentially(
+            ExportFormat format,
+            boolean usePlaceholderForNull
+    ) throws IOException {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        BufferedWriter bw = new BufferedWriter( new OutputStreamWriter(res, StandardCharsets.UTF_8) );
+        Main.write(format.export(cells, usePlaceholderForNull), bw);
+        bw.flush();
+        return res.toByteArray();
+    }
+    
+    private static byte[] writeInParallel(
+            ExportFormat format,
+            boolean usePlaceholderForNull,
+            int cellsPerChunk,
+            int maxChunksInFlight
+    ) throws IOException {
+        ByteArrayOutputStream res = new ByteArrayOutputStream();
+        long written = new ParallelExportEncoder(cellsPerChunk, maxChunksInFlight, pool)
+                .write(format.prepare(cells, usePlaceholderForNull), cells, res);
+        assertEquals(res.size(), written);
+        return res.toByteArray();
+    }
+    
+    @ParameterizedTest
+    @EnumSource(ExportFormat.class)
+    void writesTheBytesOfTheSequentialWriter(
+            ExportFormat format
+    ) throws IOException {
+        // Chunks of one Cell, of sizes that do and do not divide the Cells evenly, and of every Cell at once
+        int[] chunkSizes = {1, 2, 5, CELLS_WIDE, cells.size() - 1, cells.size(), cells.size() + 10};
+        for (boolean usePlaceholderForNull : new boolean[]{false, true}) {
+            byte[] expected = writeSequentially(format, usePlaceholderForNull);
+            for (int cellsPerChunk : chunkSizes) {
+                for (int maxChunksInFlight : new int[]{1, 3}) {
+                    assertArrayEquals( expected,
+                            writeInParallel(format, usePlaceholderForNull, cellsPerChunk, maxChunksInFlight),
+                            format + ", placeholders " + usePlaceholderForNull + ", " + cellsPerChunk
+                                    + " Cells per chunk, " + maxChunksInFlight + " in flight" );
+                }
+            }
+        }
+    }
+    
+    @ParameterizedTest
+    @EnumSource(ExportFormat.class)
+    void writesTheHeaderFirst(
+            ExportFormat format
+    ) throws IOException {
+        List<String> header = format.prepare(cells, false).header();
+        String written = new String(writeInParallel(format, false, 4, 2), StandardCharsets.UTF_8);
+        
+        StringBuilder expected = new StringBuilder();
+        for (String line : header) {
+            expected.append(line).append( System.lineSeparator() );
+        }
+        assertTrue( written.startsWith( expected.toString() ) );
+        assertEquals(format == ExportFormat.COMPACT, !header.isEmpty());
+    }
+}